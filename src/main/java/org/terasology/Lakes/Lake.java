@@ -17,29 +17,181 @@ package org.terasology.Lakes;
 
 import org.joml.Vector3i;
 import org.terasology.engine.world.block.Block;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
+/**
+ * A body of liquid placed by the {@link LakeProvider}.
+ * Its blocks are stored as vertical runs in {@link LakeColumns}; blocks above the surface height are air.
+ */
 public class Lake implements Iterable<Vector3i> {
     public static final int MAX_RADIUS = 15;
     public static final float MIN_RADIUS = 5;
     public static final int MAX_DEPTH = 10;
     public static final float MIN_DEPTH = 1.5f;
+    /**
+     * The furthest from its origin a lake's blocks, or anything read while growing it, can be horizontally:
+     * {@code ceil(MAX_RADIUS * sqrt(1 + irregularity)) + 1} with an irregularity of 1.3.
+     */
+    public static final int MAX_EXTENT = 24;
     
 
     public final int surfaceHeight;
     public final Block liquid;
-    private Set<Vector3i> content;
+    private LakeColumns content;
+    private BlockRegion bounds;
+    private BlockRegion extent;
+    private LakeCarving carving;
+    private float scale;
 
     public Lake(int surfaceHeight, Set<Vector3i> content, Block liquid) {
+        this(surfaceHeight, toVoxelSet(content), liquid, null, LakeCarving.NONE, 1);
+    }
+
+    Lake(int surfaceHeight, VoxelSet content, Block liquid, BlockRegion extent, LakeCarving carving, float scale) {
+        this(surfaceHeight, new LakeColumns(content, surfaceHeight), liquid, extent, carving, scale);
+    }
+
+    Lake(int surfaceHeight, LakeColumns content, Block liquid, BlockRegion extent, LakeCarving carving, float scale) {
         this.surfaceHeight = surfaceHeight;
         this.content = content;
+        this.bounds = this.content.getBounds();
         this.liquid = liquid;
+        this.extent = extent;
+        this.carving = carving;
+        this.scale = scale;
+    }
+
+    /**
+     * @return the part of the world that was read while growing this lake, or null if the lake depended on
+     * the bounds of the region it was grown in
+     */
+    BlockRegionc getExtent() {
+        return extent;
+    }
+
+    /**
+     * @return how much of its size the lake kept under the underground voxel budget it was grown with; 1 if it wasn't
+     * shrunk
+     */
+    float getScale() {
+        return scale;
+    }
+
+    /**
+     * A lake can be reused by a region which could see everything the lake was grown from, as long as no lake placed
+     * before it in that region has carved anything within its extent. Only then would growing it again there give
+     * the same result. The carving is up to the caller to check.
+     *
+     * @return whether the given region contains the lake's extent
+     */
+    boolean fitsWithin(BlockRegionc region) {
+        return extent != null
+            && region.minX() <= extent.minX() && extent.maxX() <= region.maxX()
+            && region.minY() <= extent.minY() && extent.maxY() <= region.maxY()
+            && region.minZ() <= extent.minZ() && extent.maxZ() <= region.maxZ();
+    }
+
+    /**
+     * @return the changes to the terrain which make room for this lake
+     */
+    LakeCarving getCarving() {
+        return carving;
+    }
+
+    LakeColumns getColumns() {
+        return content;
+    }
+
+    /**
+     * @return the number of blocks in the lake
+     */
+    public int size() {
+        return content.size();
     }
 
+    /**
+     * @return the bounding box of the lake's blocks, or null if it has none
+     */
+    public BlockRegionc getBounds() {
+        return bounds;
+    }
+
+    /**
+     * @return whether any part of the lake's bounding box is inside the given region
+     */
+    public boolean intersects(BlockRegionc region) {
+        return bounds != null
+            && bounds.minX() <= region.maxX() && region.minX() <= bounds.maxX()
+            && bounds.minY() <= region.maxY() && region.minY() <= bounds.maxY()
+            && bounds.minZ() <= region.maxZ() && region.minZ() <= bounds.maxZ();
+    }
+
+    public boolean contains(int x, int y, int z) {
+        return content.contains(x, y, z);
+    }
+
+    /**
+     * Visits every block of the lake without allocating.
+     */
+    public void forEach(VoxelSet.VoxelConsumer consumer) {
+        content.forEachRun((x, z, floor, liquidTop, airTop) -> {
+            for (int y = floor; y <= airTop; y++) {
+                consumer.accept(x, y, z);
+            }
+        });
+    }
+
+    /**
+     * Visits the blocks of the lake which are inside the given region, without allocating.
+     */
+    public void forEach(BlockRegionc clip, VoxelSet.VoxelConsumer consumer) {
+        content.forEachRun(clip, (x, z, floor, liquidTop, airTop) -> {
+            for (int y = floor; y <= airTop; y++) {
+                consumer.accept(x, y, z);
+            }
+        });
+    }
+
+    /**
+     * Visits the lake's runs in each column. See {@link LakeColumns.RunConsumer} for how each run is split into liquid and air.
+     */
+    public void forEachRun(LakeColumns.RunConsumer consumer) {
+        content.forEachRun(consumer);
+    }
+
+    /**
+     * Visits the lake's runs within the given region, clipped to it.
+     */
+    public void forEachRun(BlockRegionc clip, LakeColumns.RunConsumer consumer) {
+        content.forEachRun(clip, consumer);
+    }
+
+    /**
+     * Adapts the lake to the {@link Iterable} contract; this creates a new vector for every block.
+     * Prefer {@link #forEach(VoxelSet.VoxelConsumer)} or {@link #forEachRun(LakeColumns.RunConsumer)}.
+     */
     @Override
     public Iterator<Vector3i> iterator() {
-        return content.iterator();
+        List<Vector3i> positions = new ArrayList<>(content.size());
+        forEach((x, y, z) -> positions.add(new Vector3i(x, y, z)));
+        return positions.iterator();
+    }
+
+    private static VoxelSet toVoxelSet(Set<Vector3i> positions) {
+        if (positions.isEmpty()) {
+            return new VoxelSet.Builder(0, 0, 0).build();
+        }
+        Vector3i anchor = positions.iterator().next();
+        VoxelSet.Builder builder = new VoxelSet.Builder(anchor.x, anchor.y, anchor.z);
+        for (Vector3i pos : positions) {
+            builder.add(pos.x, pos.y, pos.z);
+        }
+        return builder.build();
     }
 }
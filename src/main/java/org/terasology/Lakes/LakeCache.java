@@ -0,0 +1,139 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.joml.Vector3ic;
+import org.terasology.engine.world.block.BlockRegionc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of finished lakes, so that the many regions overlapping one lake don't each grow it again.
+ * Lakes are keyed by world seed and origin, and the least recently used lake is evicted once the cache is full.
+ * Cached lakes are never modified, so the same instance is shared by every region that uses it.
+ * All methods are thread-safe.
+ */
+public class LakeCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int capacity;
+    private final Map<Key, Lake> lakes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public LakeCache(int capacity) {
+        this.capacity = capacity;
+        this.lakes = new LinkedHashMap<Key, Lake>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Lake> eldest) {
+                if (size() > LakeCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param available the parts of the world the caller has information about
+     * @return the lake grown from the given origin, if it is cached and could have been grown within the available regions
+     */
+    public Lake get(long seed, boolean underground, Vector3ic origin, BlockRegionc... available) {
+        Lake lake;
+        synchronized (lakes) {
+            lake = lakes.get(new Key(seed, underground, origin));
+        }
+        if (lake != null) {
+            for (BlockRegionc region : available) {
+                if (!lake.fitsWithin(region)) {
+                    lake = null;
+                    break;
+                }
+            }
+        }
+        if (lake == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return lake;
+    }
+
+    /**
+     * Lakes which depended on the bounds of the region they were grown in are not cached.
+     */
+    public void put(long seed, boolean underground, Vector3ic origin, Lake lake) {
+        if (lake.getExtent() == null) {
+            return;
+        }
+        synchronized (lakes) {
+            lakes.put(new Key(seed, underground, origin), lake);
+        }
+    }
+
+    public int size() {
+        synchronized (lakes) {
+            return lakes.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static final class Key {
+        private final long seed;
+        private final boolean underground;
+        private final int x;
+        private final int y;
+        private final int z;
+
+        Key(long seed, boolean underground, Vector3ic origin) {
+            this.seed = seed;
+            this.underground = underground;
+            this.x = origin.x();
+            this.y = origin.y();
+            this.z = origin.z();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return seed == other.seed && underground == other.underground && x == other.x && y == other.y && z == other.z;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Long.hashCode(seed);
+            result = 31 * result + (underground ? 1 : 0);
+            result = 31 * result + x;
+            result = 31 * result + y;
+            result = 31 * result + z;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
+import org.terasology.engine.world.generation.facets.DensityFacet;
+import org.terasology.engine.world.generation.facets.SurfacesFacet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The changes a lake makes to the surrounding terrain, recorded while the lake is grown
+ * so that they can be replayed in every region the lake overlaps.
+ */
+final class LakeCarving {
+    static final LakeCarving NONE = new Builder().build();
+
+    /** Columns of density cleared to air, as (x, z, minY, maxY) tuples. */
+    private final int[] clearedColumns;
+    /** Positions that stop being surfaces, as (x, y, z) tuples. */
+    private final int[] clearedSurfaces;
+    /** Positions that become surfaces, as (x, y, z) tuples. */
+    private final int[] addedSurfaces;
+    private final BlockRegion bounds;
+
+    private LakeCarving(int[] clearedColumns, int[] clearedSurfaces, int[] addedSurfaces) {
+        this.clearedColumns = clearedColumns;
+        this.clearedSurfaces = clearedSurfaces;
+        this.addedSurfaces = addedSurfaces;
+        BlockRegion box = null;
+        for (int i = 0; i < clearedColumns.length; i += 4) {
+            box = include(box, clearedColumns[i], clearedColumns[i + 2], clearedColumns[i + 1]);
+            box = include(box, clearedColumns[i], clearedColumns[i + 3], clearedColumns[i + 1]);
+        }
+        for (int i = 0; i < clearedSurfaces.length; i += 3) {
+            box = include(box, clearedSurfaces[i], clearedSurfaces[i + 1], clearedSurfaces[i + 2]);
+        }
+        for (int i = 0; i < addedSurfaces.length; i += 3) {
+            box = include(box, addedSurfaces[i], addedSurfaces[i + 1], addedSurfaces[i + 2]);
+        }
+        this.bounds = box;
+    }
+
+    /**
+     * @return the smallest region containing every position the carving changes, or null if it changes nothing
+     */
+    BlockRegionc getBounds() {
+        return bounds;
+    }
+
+    void apply(DensityFacet density, SurfacesFacet surfaces) {
+        for (int i = 0; i < clearedColumns.length; i += 4) {
+            for (int y = clearedColumns[i + 2]; y <= clearedColumns[i + 3]; y++) {
+                density.setWorld(clearedColumns[i], y, clearedColumns[i + 1], 0);
+            }
+        }
+        for (int i = 0; i < clearedSurfaces.length; i += 3) {
+            surfaces.setWorld(clearedSurfaces[i], clearedSurfaces[i + 1], clearedSurfaces[i + 2], false);
+        }
+        for (int i = 0; i < addedSurfaces.length; i += 3) {
+            surfaces.setWorld(addedSurfaces[i], addedSurfaces[i + 1], addedSurfaces[i + 2], true);
+        }
+    }
+
+    void write(DataOutput out) throws IOException {
+        writeInts(out, clearedColumns);
+        writeInts(out, clearedSurfaces);
+        writeInts(out, addedSurfaces);
+    }
+
+    /**
+     * Reads a carving written by {@link #write}.
+     */
+    static LakeCarving read(DataInput in) throws IOException {
+        return new LakeCarving(readInts(in, 4), readInts(in, 3), readInts(in, 3));
+    }
+
+    private static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInput in, int tupleLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length % tupleLength != 0) {
+            throw new IOException("Corrupt lake carving: " + length + " values");
+        }
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static BlockRegion include(BlockRegion box, int x, int y, int z) {
+        return box == null ? new BlockRegion(x, y, z) : box.union(x, y, z);
+    }
+
+    static final class Builder {
+        private int[] clearedColumns = new int[16];
+        private int clearedColumnsSize;
+        private int[] clearedSurfaces = new int[12];
+        private int clearedSurfacesSize;
+        private int[] addedSurfaces = new int[12];
+        private int addedSurfacesSize;
+
+        void clearColumn(int x, int z, int minY, int maxY) {
+            if (clearedColumnsSize + 4 > clearedColumns.length) {
+                clearedColumns = Arrays.copyOf(clearedColumns, clearedColumns.length * 2);
+            }
+            clearedColumns[clearedColumnsSize++] = x;
+            clearedColumns[clearedColumnsSize++] = z;
+            clearedColumns[clearedColumnsSize++] = minY;
+            clearedColumns[clearedColumnsSize++] = maxY;
+        }
+
+        void clearSurface(int x, int y, int z) {
+            if (clearedSurfacesSize + 3 > clearedSurfaces.length) {
+                clearedSurfaces = Arrays.copyOf(clearedSurfaces, clearedSurfaces.length * 2);
+            }
+            clearedSurfaces[clearedSurfacesSize++] = x;
+            clearedSurfaces[clearedSurfacesSize++] = y;
+            clearedSurfaces[clearedSurfacesSize++] = z;
+        }
+
+        void addSurface(int x, int y, int z) {
+            if (addedSurfacesSize + 3 > addedSurfaces.length) {
+                addedSurfaces = Arrays.copyOf(addedSurfaces, addedSurfaces.length * 2);
+            }
+            addedSurfaces[addedSurfacesSize++] = x;
+            addedSurfaces[addedSurfacesSize++] = y;
+            addedSurfaces[addedSurfacesSize++] = z;
+        }
+
+        LakeCarving build() {
+            return new LakeCarving(
+                    Arrays.copyOf(clearedColumns, clearedColumnsSize),
+                    Arrays.copyOf(clearedSurfaces, clearedSurfacesSize),
+                    Arrays.copyOf(addedSurfaces, addedSurfacesSize));
+        }
+    }
+}
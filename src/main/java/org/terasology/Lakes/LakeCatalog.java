@@ -0,0 +1,636 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.joml.Vector3i;
+import org.joml.Vector3ic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.engine.world.block.Block;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Every lake grown in a world, kept on disk so that lakes needn't be grown again after a restart or once the
+ * {@link LakeCache} has forgotten them, and so that tools can find lakes without generating any terrain.
+ *
+ * Lakes are appended to a data file as they're committed, and never change afterwards. They're found through an index
+ * of their origins, sorted by the chunk-sized column they're in, which is memory-mapped and searched by bisection.
+ * Lakes added since the index was last written are kept in memory until enough of them pile up to write a new one.
+ * Anything the index doesn't cover when the catalog is opened, such as after a crash, is read back from the data file.
+ *
+ * Only lakes which didn't depend on the bounds of the region they were grown in are kept, as in the cache.
+ * All methods are thread-safe. Lookups don't lock: they read a snapshot of the index and the pending lakes, which is
+ * replaced whenever a new index is written, and read records at their offsets without moving the data file's position.
+ * Only adding lakes and writing the index lock the catalog.
+ */
+public final class LakeCatalog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(LakeCatalog.class);
+
+    private static final int MAGIC = 0x4c414b45;
+    private static final int VERSION = 2;
+    private static final int DATA_HEADER = 8;
+    /** Magic, version, entry count, and the length of the data file the index covers. */
+    private static final int INDEX_HEADER = 20;
+    /** Bucket x, bucket z, x, z, y, underground and the record's offset in the data file. */
+    private static final int ENTRY = 32;
+    private static final int BUCKET_SIZE = 32;
+    private static final int PENDING_LIMIT = 1024;
+
+    /** The catalogs open in this process, so that they can be written out when the game is saved or ends. */
+    private static final Set<LakeCatalog> openCatalogs = ConcurrentHashMap.newKeySet();
+
+    private final Path directory;
+    private final long seed;
+    private final Block water;
+    private final Block lava;
+    private final FileChannel data;
+    /** Only grows while the catalog is open, and always after the record it now covers has been written. */
+    private volatile long dataLength;
+
+    private int indexGeneration;
+    private Path indexPath;
+    private volatile Snapshot snapshot = new Snapshot(null, 0);
+
+    private LakeCatalog(Path directory, long seed, Block water, Block lava) throws IOException {
+        this.directory = directory;
+        this.seed = seed;
+        this.water = water;
+        this.lava = lava;
+        this.data = FileChannel.open(directory.resolve("lakes-" + seed + ".dat"),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            openData();
+            openIndex();
+            recoverTail();
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the catalog for the given world seed in the given directory, creating it if there isn't one yet.
+     *
+     * @param water the block of lakes stored as water
+     * @param lava the block of lakes stored as lava
+     */
+    public static LakeCatalog open(Path directory, long seed, Block water, Block lava) throws IOException {
+        Files.createDirectories(directory);
+        LakeCatalog catalog = new LakeCatalog(directory, seed, water, lava);
+        openCatalogs.add(catalog);
+        return catalog;
+    }
+
+    /**
+     * Writes the lakes added to each open catalog since its index was last written into a new index.
+     */
+    static void flushAll() {
+        for (LakeCatalog catalog : openCatalogs) {
+            try {
+                catalog.flush();
+            } catch (IOException e) {
+                logger.warn("Couldn't write the index of the lake catalog in {}", catalog.directory, e);
+            }
+        }
+    }
+
+    /**
+     * Closes every open catalog.
+     */
+    static void closeAll() {
+        for (LakeCatalog catalog : openCatalogs) {
+            try {
+                catalog.close();
+            } catch (IOException e) {
+                logger.warn("Couldn't close the lake catalog in {}", catalog.directory, e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of lakes in the catalog
+     */
+    public int size() {
+        Snapshot current = snapshot;
+        return current.count + current.pending.size();
+    }
+
+    /**
+     * @return whether the catalog is still open; once it's been closed, every lookup fails
+     */
+    public boolean isOpen() {
+        return data.isOpen();
+    }
+
+    /**
+     * @return the lake grown from the given origin, or null if it isn't in the catalog
+     */
+    public Lake get(boolean underground, Vector3ic origin) throws IOException {
+        Key key = new Key(underground, origin.x(), origin.y(), origin.z());
+        long offset = snapshot.find(key);
+        return offset < 0 ? null : readLake(offset);
+    }
+
+    /**
+     * @return the lakes whose bounds intersect the given region, ordered by origin
+     */
+    public List<Lake> getLakes(BlockRegionc region) throws IOException {
+        List<Lake> result = new ArrayList<>();
+        forEachLake(region, (underground, origin, lake) -> result.add(lake));
+        return result;
+    }
+
+    /**
+     * Visits the lakes whose bounds intersect the given region, ordered by origin, along with where they were grown from.
+     */
+    public void forEachLake(BlockRegionc region, Visitor visitor) throws IOException {
+        Snapshot current = snapshot;
+        // A lake's blocks are never further than this from its origin.
+        int minX = region.minX() - Lake.MAX_EXTENT;
+        int maxX = region.maxX() + Lake.MAX_EXTENT;
+        int minZ = region.minZ() - Lake.MAX_EXTENT;
+        int maxZ = region.maxZ() + Lake.MAX_EXTENT;
+        int minBucketZ = Math.floorDiv(minZ, BUCKET_SIZE);
+        int maxBucketZ = Math.floorDiv(maxZ, BUCKET_SIZE);
+        for (int bx = Math.floorDiv(minX, BUCKET_SIZE); bx <= Math.floorDiv(maxX, BUCKET_SIZE); bx++) {
+            Key from = new Key(bx, minBucketZ, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, 0);
+            Key to = new Key(bx, maxBucketZ, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, 1);
+            for (int i = current.lowerBound(from); i < current.count && current.compare(i, to) <= 0; i++) {
+                int x = current.entryInt(i, 2);
+                int z = current.entryInt(i, 3);
+                if (minX <= x && x <= maxX && minZ <= z && z <= maxZ) {
+                    visit(new Key(current.entryInt(i, 0), current.entryInt(i, 1), x, z, current.entryInt(i, 4), current.entryInt(i, 5)),
+                        current.offset(i), region, visitor);
+                }
+            }
+            for (Map.Entry<Key, Long> entry : current.pending.subMap(from, true, to, true).entrySet()) {
+                Key key = entry.getKey();
+                if (minX <= key.x && key.x <= maxX && minZ <= key.z && key.z <= maxZ) {
+                    visit(key, entry.getValue(), region, visitor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a lake to the catalog, unless it's already there or it depended on the bounds of the region it was grown in.
+     */
+    public synchronized void add(boolean underground, Vector3ic origin, Lake lake) throws IOException {
+        if (lake.getExtent() == null) {
+            return;
+        }
+        Key key = new Key(underground, origin.x(), origin.y(), origin.z());
+        Snapshot current = snapshot;
+        if (current.find(key) >= 0) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        writeLake(out, key, lake);
+        out.flush();
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.limit() - 4);
+
+        long offset = dataLength;
+        writeFully(record, offset);
+        dataLength = offset + record.limit();
+        current.pending.put(key, offset);
+        if (current.pending.size() >= PENDING_LIMIT) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Writes the lakes added since the index was last written into a new index.
+     */
+    public synchronized void flush() throws IOException {
+        if (!snapshot.pending.isEmpty() && data.isOpen()) {
+            writeIndex();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        openCatalogs.remove(this);
+        try {
+            flush();
+        } finally {
+            data.close();
+        }
+    }
+
+    private void openData() throws IOException {
+        dataLength = data.size();
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER);
+        if (dataLength == 0) {
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(header, 0);
+            dataLength = DATA_HEADER;
+            return;
+        }
+        readFully(header, 0);
+        if (dataLength < DATA_HEADER || header.getInt(0) != MAGIC || header.getInt(4) > VERSION) {
+            throw new IOException("Not a version " + VERSION + " lake catalog");
+        }
+        if (header.getInt(4) < VERSION) {
+            // Older catalogs don't say how far their underground lakes were shrunk to fit the voxel budget. Any lake
+            // can be grown again, so they're started afresh; their indices are thrown away as stale when opened.
+            logger.info("Starting the version {} lake catalog in {} afresh as version {}", header.getInt(4), directory, VERSION);
+            data.truncate(0);
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(header, 0);
+            dataLength = DATA_HEADER;
+        }
+    }
+
+    /**
+     * Maps the newest index which is readable and doesn't cover more than the data file holds, and deletes the others,
+     * along with any index left half-written.
+     */
+    private void openIndex() throws IOException {
+        List<Path> stale = new ArrayList<>();
+        MappedByteBuffer index = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "lakes-" + seed + "-*{.idx,.idx.tmp}")) {
+            for (Path file : files) {
+                if (file.getFileName().toString().endsWith(".tmp")) {
+                    stale.add(file);
+                    continue;
+                }
+                int generation = generationOf(file);
+                if (generation < 0) {
+                    continue;
+                }
+                if (indexPath != null && generation < indexGeneration) {
+                    stale.add(file);
+                    continue;
+                }
+                MappedByteBuffer mapped = mapIndex(file);
+                if (mapped == null) {
+                    stale.add(file);
+                    continue;
+                }
+                if (indexPath != null) {
+                    stale.add(indexPath);
+                }
+                indexGeneration = generation;
+                indexPath = file;
+                index = mapped;
+            }
+        }
+        snapshot = new Snapshot(index, index == null ? 0 : index.getInt(8));
+        for (Path file : stale) {
+            deleteQuietly(file);
+        }
+    }
+
+    private MappedByteBuffer mapIndex(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < INDEX_HEADER) {
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = mapped.getInt(8);
+            long covered = mapped.getLong(12);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION || count < 0
+                || channel.size() != INDEX_HEADER + (long) count * ENTRY || covered > dataLength) {
+                return null;
+            }
+            return mapped;
+        }
+    }
+
+    /**
+     * Reads back the records the index doesn't cover, and cuts off a record that was only partly written.
+     */
+    private void recoverTail() throws IOException {
+        Snapshot current = snapshot;
+        long offset = current.index == null ? DATA_HEADER : current.index.getLong(12);
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (offset + 4 <= dataLength) {
+            length.clear();
+            readFully(length, offset);
+            int recordLength = length.getInt(0);
+            if (recordLength <= 0 || offset + 4 + recordLength > dataLength) {
+                break;
+            }
+            Key key;
+            try {
+                key = readKey(offset);
+            } catch (IOException e) {
+                break;
+            }
+            if (current.find(key) < 0) {
+                current.pending.put(key, offset);
+            }
+            offset += 4 + recordLength;
+        }
+        if (offset < dataLength) {
+            logger.warn("Discarding {} bytes of incomplete lake records", dataLength - offset);
+            data.truncate(offset);
+            dataLength = offset;
+        }
+    }
+
+    /**
+     * Writes the current index and the pending lakes into a new index, and replaces the snapshot lookups read with it.
+     */
+    private void writeIndex() throws IOException {
+        Snapshot current = snapshot;
+        int count = current.count + current.pending.size();
+        int generation = indexGeneration + 1;
+        Path file = directory.resolve("lakes-" + seed + "-" + generation + ".idx");
+        Path temporary = directory.resolve(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeLong(dataLength);
+            // Merge the mapped entries with the pending ones, which are both already sorted.
+            Iterator<Map.Entry<Key, Long>> added = current.pending.entrySet().iterator();
+            Map.Entry<Key, Long> next = added.hasNext() ? added.next() : null;
+            for (int i = 0; i < current.count; i++) {
+                while (next != null && current.compare(i, next.getKey()) > 0) {
+                    writeEntry(out, next.getKey(), next.getValue());
+                    next = added.hasNext() ? added.next() : null;
+                }
+                for (int word = 0; word < ENTRY / 4; word++) {
+                    out.writeInt(current.entryInt(i, word));
+                }
+            }
+            while (next != null) {
+                writeEntry(out, next.getKey(), next.getValue());
+                next = added.hasNext() ? added.next() : null;
+            }
+        }
+        data.force(false);
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+
+        Path previous = indexPath;
+        MappedByteBuffer index = mapIndex(file);
+        if (index == null) {
+            throw new IOException("Couldn't read back the lake index just written to " + file);
+        }
+        indexGeneration = generation;
+        indexPath = file;
+        // Lookups which still hold the previous snapshot go on reading its mapping and pending lakes, which stay as they were.
+        snapshot = new Snapshot(index, count);
+        if (previous != null) {
+            deleteQuietly(previous);
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Key key, long offset) throws IOException {
+        out.writeInt(key.bucketX);
+        out.writeInt(key.bucketZ);
+        out.writeInt(key.x);
+        out.writeInt(key.z);
+        out.writeInt(key.y);
+        out.writeInt(key.underground);
+        out.writeLong(offset);
+    }
+
+    private static int entryOffset(int entry) {
+        return INDEX_HEADER + entry * ENTRY;
+    }
+
+    private void visit(Key key, long offset, BlockRegionc region, Visitor visitor) throws IOException {
+        Lake lake = readLake(offset);
+        if (lake.intersects(region)) {
+            visitor.visit(key.underground != 0, new Vector3i(key.x, key.y, key.z), lake);
+        }
+    }
+
+    private void writeLake(DataOutputStream out, Key key, Lake lake) throws IOException {
+        out.writeBoolean(key.underground != 0);
+        out.writeInt(key.x);
+        out.writeInt(key.y);
+        out.writeInt(key.z);
+        out.writeInt(lake.surfaceHeight);
+        out.writeBoolean(lake.liquid == lava);
+        BlockRegionc extent = lake.getExtent();
+        out.writeInt(extent.minX());
+        out.writeInt(extent.minY());
+        out.writeInt(extent.minZ());
+        out.writeInt(extent.maxX());
+        out.writeInt(extent.maxY());
+        out.writeInt(extent.maxZ());
+        out.writeFloat(lake.getScale());
+        lake.getColumns().write(out);
+        lake.getCarving().write(out);
+    }
+
+    private Key readKey(long offset) throws IOException {
+        DataInputStream in = record(offset);
+        return new Key(in.readBoolean(), in.readInt(), in.readInt(), in.readInt());
+    }
+
+    private Lake readLake(long offset) throws IOException {
+        DataInputStream in = record(offset);
+        in.readBoolean();
+        in.readInt();
+        in.readInt();
+        in.readInt();
+        int surfaceHeight = in.readInt();
+        Block liquid = in.readBoolean() ? lava : water;
+        BlockRegion extent = new BlockRegion(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        float scale = in.readFloat();
+        LakeColumns columns = LakeColumns.read(in);
+        LakeCarving carving = LakeCarving.read(in);
+        return new Lake(surfaceHeight, columns, liquid, extent, carving, scale);
+    }
+
+    private DataInputStream record(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, offset);
+        int recordLength = length.getInt(0);
+        if (recordLength <= 0 || offset + 4 + recordLength > dataLength) {
+            throw new IOException("Corrupt lake record at " + offset);
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        readFully(record, offset + 4);
+        return new DataInputStream(new ByteArrayInputStream(record.array()));
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the lake catalog at " + position);
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            data.write(buffer, position + buffer.position());
+        }
+    }
+
+    private int generationOf(Path file) {
+        String name = file.getFileName().toString();
+        String prefix = "lakes-" + seed + "-";
+        try {
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - ".idx".length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Mapped files can't be deleted on some platforms until they're unmapped; the next open cleans them up.
+            logger.debug("Couldn't delete the old lake index {}", file, e);
+        }
+    }
+
+    public interface Visitor {
+        void visit(boolean underground, Vector3ic origin, Lake lake);
+    }
+
+    /**
+     * An index as written, and the lakes added after it. The mapping is only read; lakes are only added to the pending
+     * ones while holding the catalog's lock, and the snapshot is replaced rather than emptied when a new index is written.
+     */
+    private static final class Snapshot {
+        final MappedByteBuffer index;
+        final int count;
+        final ConcurrentSkipListMap<Key, Long> pending = new ConcurrentSkipListMap<>();
+
+        Snapshot(MappedByteBuffer index, int count) {
+            this.index = index;
+            this.count = count;
+        }
+
+        /**
+         * @return the offset of the record with the given key, or -1 if there isn't one
+         */
+        long find(Key key) {
+            Long offset = pending.get(key);
+            if (offset != null) {
+                return offset;
+            }
+            int i = lowerBound(key);
+            return i < count && compare(i, key) == 0 ? offset(i) : -1;
+        }
+
+        /**
+         * @return the first index entry which isn't less than the given key
+         */
+        int lowerBound(Key key) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(middle, key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        int compare(int entry, Key key) {
+            for (int word = 0; word < 6; word++) {
+                int result = Integer.compare(entryInt(entry, word), key.get(word));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        int entryInt(int entry, int word) {
+            return index.getInt(entryOffset(entry) + word * 4);
+        }
+
+        long offset(int entry) {
+            return index.getLong(entryOffset(entry) + 24);
+        }
+    }
+
+    /**
+     * Where a lake goes in the index: lakes are sorted by the chunk-sized column their origin is in, then by origin.
+     */
+    private static final class Key implements Comparable<Key> {
+        final int bucketX;
+        final int bucketZ;
+        final int x;
+        final int z;
+        final int y;
+        final int underground;
+
+        Key(boolean underground, int x, int y, int z) {
+            this(Math.floorDiv(x, BUCKET_SIZE), Math.floorDiv(z, BUCKET_SIZE), x, z, y, underground ? 1 : 0);
+        }
+
+        Key(int bucketX, int bucketZ, int x, int z, int y, int underground) {
+            this.bucketX = bucketX;
+            this.bucketZ = bucketZ;
+            this.x = x;
+            this.z = z;
+            this.y = y;
+            this.underground = underground;
+        }
+
+        int get(int word) {
+            switch (word) {
+                case 0: return bucketX;
+                case 1: return bucketZ;
+                case 2: return x;
+                case 3: return z;
+                case 4: return y;
+                default: return underground;
+            }
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            for (int word = 0; word < 6; word++) {
+                int result = Integer.compare(get(word), other.get(word));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && compareTo((Key) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((((bucketX * 31 + bucketZ) * 31 + x) * 31 + z) * 31 + y) * 2 + underground;
+        }
+    }
+}
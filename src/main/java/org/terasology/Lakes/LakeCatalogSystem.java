@@ -0,0 +1,26 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.terasology.engine.entitySystem.systems.BaseComponentSystem;
+import org.terasology.engine.entitySystem.systems.RegisterSystem;
+
+/**
+ * Writes out the lake catalogs when the game is saved, and closes them when it ends. World generator plugins aren't
+ * told about either, so without this the lakes added since an index was last written would stay out of the index,
+ * and the catalog open, until the next world was generated.
+ */
+@RegisterSystem
+public class LakeCatalogSystem extends BaseComponentSystem {
+
+    @Override
+    public void preSave() {
+        LakeCatalog.flushAll();
+    }
+
+    @Override
+    public void shutdown() {
+        LakeCatalog.closeAll();
+    }
+}
@@ -0,0 +1,215 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The blocks of a lake, stored as vertical runs in each (x, z) column of its bounding box.
+ * Each run is liquid from its floor up to its liquid top, and air above that up to its air top,
+ * so a run can be written without looking at its blocks one at a time.
+ */
+public final class LakeColumns {
+    /**
+     * Receives the runs of a lake. The run is liquid from floor to liquidTop, and air from
+     * {@code max(floor, liquidTop + 1)} to airTop; either part may be empty.
+     */
+    @FunctionalInterface
+    public interface RunConsumer {
+        void accept(int x, int z, int floor, int liquidTop, int airTop);
+    }
+
+    private static final int RUN_LENGTH = 3;
+
+    private final int minX;
+    private final int minZ;
+    private final int sizeX;
+    private final int sizeZ;
+    private final int minY;
+    private final int maxY;
+    /** For each column, the index of its first run; the last entry is the total number of runs. */
+    private final int[] columnStarts;
+    /** (floor, liquidTop, airTop) triples, grouped by column. */
+    private final int[] runs;
+    private final int size;
+
+    /**
+     * @param surfaceHeight the highest block which is liquid rather than air
+     */
+    LakeColumns(VoxelSet voxels, int surfaceHeight) {
+        BlockRegion bounds = voxels.getBounds();
+        if (bounds == null) {
+            minX = 0;
+            minZ = 0;
+            sizeX = 0;
+            sizeZ = 0;
+            minY = 0;
+            maxY = -1;
+            columnStarts = new int[1];
+            runs = new int[0];
+            size = 0;
+            return;
+        }
+        minX = bounds.minX();
+        minZ = bounds.minZ();
+        sizeX = bounds.getSizeX();
+        sizeZ = bounds.getSizeZ();
+        minY = bounds.minY();
+        maxY = bounds.maxY();
+        size = voxels.size();
+
+        int[] columnCounts = new int[sizeX * sizeZ + 1];
+        int[][] collected = {new int[RUN_LENGTH * 64]};
+        int[] runCount = new int[1];
+        voxels.forEachRun((x, z, bottom, top) -> {
+            if ((runCount[0] + 1) * RUN_LENGTH > collected[0].length) {
+                collected[0] = Arrays.copyOf(collected[0], collected[0].length * 2);
+            }
+            int[] target = collected[0];
+            int offset = runCount[0]++ * RUN_LENGTH;
+            target[offset] = bottom;
+            target[offset + 1] = Math.min(top, surfaceHeight);
+            target[offset + 2] = top;
+            columnCounts[(x - minX) + sizeX * (z - minZ) + 1]++;
+        });
+        // Runs arrive column by column in index order, so a prefix sum gives each column's first run.
+        for (int i = 1; i < columnCounts.length; i++) {
+            columnCounts[i] += columnCounts[i - 1];
+        }
+        columnStarts = columnCounts;
+        runs = Arrays.copyOf(collected[0], runCount[0] * RUN_LENGTH);
+    }
+
+    private LakeColumns(int minX, int minZ, int sizeX, int sizeZ, int minY, int maxY, int[] columnStarts, int[] runs, int size) {
+        this.minX = minX;
+        this.minZ = minZ;
+        this.sizeX = sizeX;
+        this.sizeZ = sizeZ;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.columnStarts = columnStarts;
+        this.runs = runs;
+        this.size = size;
+    }
+
+    /**
+     * Writes the runs compactly: the number of runs in each column, then each run's heights relative to the bottom of the bounds.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(minX);
+        out.writeInt(minZ);
+        out.writeInt(sizeX);
+        out.writeInt(sizeZ);
+        out.writeInt(minY);
+        out.writeInt(maxY);
+        out.writeInt(size);
+        for (int column = 0; column < sizeX * sizeZ; column++) {
+            out.writeShort(columnStarts[column + 1] - columnStarts[column]);
+        }
+        for (int value : runs) {
+            out.writeShort(value - minY);
+        }
+    }
+
+    /**
+     * Reads runs written by {@link #write}.
+     */
+    static LakeColumns read(DataInput in) throws IOException {
+        int minX = in.readInt();
+        int minZ = in.readInt();
+        int sizeX = in.readInt();
+        int sizeZ = in.readInt();
+        int minY = in.readInt();
+        int maxY = in.readInt();
+        int size = in.readInt();
+        if (sizeX < 0 || sizeZ < 0 || (long) sizeX * sizeZ > Integer.MAX_VALUE - 1) {
+            throw new IOException("Corrupt lake columns: " + sizeX + "x" + sizeZ);
+        }
+        int[] columnStarts = new int[sizeX * sizeZ + 1];
+        for (int column = 0; column < sizeX * sizeZ; column++) {
+            columnStarts[column + 1] = columnStarts[column] + in.readUnsignedShort();
+        }
+        int[] runs = new int[columnStarts[sizeX * sizeZ] * RUN_LENGTH];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = in.readShort() + minY;
+        }
+        return new LakeColumns(minX, minZ, sizeX, sizeZ, minY, maxY, columnStarts, runs, size);
+    }
+
+    /**
+     * @return the number of blocks in all the runs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the bounding box of the runs, or null if there are none
+     */
+    public BlockRegion getBounds() {
+        if (size == 0) {
+            return null;
+        }
+        return new BlockRegion(minX, minY, minZ, minX + sizeX - 1, maxY, minZ + sizeZ - 1);
+    }
+
+    public boolean contains(int x, int y, int z) {
+        int rx = x - minX;
+        int rz = z - minZ;
+        if (rx < 0 || rz < 0 || rx >= sizeX || rz >= sizeZ) {
+            return false;
+        }
+        int column = rx + sizeX * rz;
+        for (int run = columnStarts[column]; run < columnStarts[column + 1]; run++) {
+            if (runs[run * RUN_LENGTH] <= y && y <= runs[run * RUN_LENGTH + 2]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void forEachRun(RunConsumer consumer) {
+        for (int column = 0; column < sizeX * sizeZ; column++) {
+            for (int run = columnStarts[column]; run < columnStarts[column + 1]; run++) {
+                int offset = run * RUN_LENGTH;
+                consumer.accept(minX + column % sizeX, minZ + column / sizeX, runs[offset], runs[offset + 1], runs[offset + 2]);
+            }
+        }
+    }
+
+    /**
+     * Visits only the columns inside the clipping region, with each run cut down to the region's height.
+     * Runs which end up empty are skipped.
+     */
+    public void forEachRun(BlockRegionc clip, RunConsumer consumer) {
+        int fromX = Math.max(clip.minX(), minX) - minX;
+        int toX = Math.min(clip.maxX(), minX + sizeX - 1) - minX;
+        int fromZ = Math.max(clip.minZ(), minZ) - minZ;
+        int toZ = Math.min(clip.maxZ(), minZ + sizeZ - 1) - minZ;
+        int clipMinY = clip.minY();
+        int clipMaxY = clip.maxY();
+        if (clipMaxY < minY || clipMinY > maxY) {
+            return;
+        }
+        for (int rz = fromZ; rz <= toZ; rz++) {
+            for (int rx = fromX; rx <= toX; rx++) {
+                int column = rx + sizeX * rz;
+                for (int run = columnStarts[column]; run < columnStarts[column + 1]; run++) {
+                    int offset = run * RUN_LENGTH;
+                    int floor = Math.max(runs[offset], clipMinY);
+                    int airTop = Math.min(runs[offset + 2], clipMaxY);
+                    if (floor <= airTop) {
+                        consumer.accept(minX + rx, minZ + rz, floor, Math.min(runs[offset + 1], clipMaxY), airTop);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -16,17 +16,31 @@
 package org.terasology.Lakes;
 
 import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
 import org.terasology.engine.world.generation.Border3D;
 import org.terasology.engine.world.generation.facets.base.BaseFacet3D;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 
+/**
+ * The lakes overlapping a region.
+ * Lakes are also indexed by the chunk-sized columns their bounds touch, so that consumers which
+ * only care about part of the region don't have to look at every lake.
+ */
 public class LakeFacet extends BaseFacet3D {
+    private static final int BUCKET_SIZE = 32;
 
     protected Set<Lake> lakes = new LinkedHashSet<>();
+    private final List<Lake> ordered = new ArrayList<>();
+    private final Map<Long, List<Integer>> buckets = new HashMap<>();
 
     public LakeFacet(BlockRegion targetRegion, Border3D border) {
         super(targetRegion, border);
@@ -36,7 +50,20 @@ public class LakeFacet extends BaseFacet3D {
      * @param lake
      */
     public void add(Lake lake) {
-        lakes.add(lake);
+        if (!lakes.add(lake)) {
+            return;
+        }
+        int index = ordered.size();
+        ordered.add(lake);
+        BlockRegionc bounds = lake.getBounds();
+        if (bounds == null) {
+            return;
+        }
+        for (int bx = Math.floorDiv(bounds.minX(), BUCKET_SIZE); bx <= Math.floorDiv(bounds.maxX(), BUCKET_SIZE); bx++) {
+            for (int bz = Math.floorDiv(bounds.minZ(), BUCKET_SIZE); bz <= Math.floorDiv(bounds.maxZ(), BUCKET_SIZE); bz++) {
+                buckets.computeIfAbsent(bucketKey(bx, bz), key -> new ArrayList<>()).add(index);
+            }
+        }
     }
 
     /**
@@ -45,4 +72,43 @@ public class LakeFacet extends BaseFacet3D {
     public Set<Lake> getLakes() {
         return Collections.unmodifiableSet(lakes);
     }
+
+    /**
+     * @return the lakes whose bounds intersect the given region, in the order they were added
+     */
+    public List<Lake> getLakes(BlockRegionc region) {
+        int minBucketX = Math.floorDiv(region.minX(), BUCKET_SIZE);
+        int maxBucketX = Math.floorDiv(region.maxX(), BUCKET_SIZE);
+        int minBucketZ = Math.floorDiv(region.minZ(), BUCKET_SIZE);
+        int maxBucketZ = Math.floorDiv(region.maxZ(), BUCKET_SIZE);
+        if (minBucketX == maxBucketX && minBucketZ == maxBucketZ) {
+            // The common case of a single chunk: its bucket is already in order and has no duplicates.
+            return collect(buckets.getOrDefault(bucketKey(minBucketX, minBucketZ), Collections.emptyList()), region);
+        }
+        Set<Integer> indices = new TreeSet<>();
+        for (int bx = minBucketX; bx <= maxBucketX; bx++) {
+            for (int bz = minBucketZ; bz <= maxBucketZ; bz++) {
+                List<Integer> bucket = buckets.get(bucketKey(bx, bz));
+                if (bucket != null) {
+                    indices.addAll(bucket);
+                }
+            }
+        }
+        return collect(indices, region);
+    }
+
+    private List<Lake> collect(Iterable<Integer> indices, BlockRegionc region) {
+        List<Lake> result = new ArrayList<>();
+        for (int index : indices) {
+            Lake lake = ordered.get(index);
+            if (lake.intersects(region)) {
+                result.add(lake);
+            }
+        }
+        return result;
+    }
+
+    private static long bucketKey(int bx, int bz) {
+        return ((long) bx << 32) | (bz & 0xFFFFFFFFL);
+    }
 }
@@ -0,0 +1,258 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import java.util.Arrays;
+
+/**
+ * A reusable scanline flood fill over a bounding box, used to grow lakes.
+ * Instead of queueing every neighbour of every block, it grows whole spans along the x axis and only queues
+ * one seed for each run of new blocks found next to a span. Every position is classified at most once,
+ * and which positions have been seen is kept in bitmaps over the box, so growing a lake doesn't allocate.
+ *
+ * The set of positions classified is the same as a breadth-first search would classify: every block inside
+ * the lake, and every neighbour of those blocks. Bits are ordered the same way as in {@link VoxelSet}.
+ */
+final class LakeFill {
+    /**
+     * Decides which blocks belong to the lake being grown.
+     */
+    @FunctionalInterface
+    interface Lakeness {
+        int INSIDE = 0;
+        int OUTSIDE = 1;
+        /** The lake can't be placed; stop filling. */
+        int ABORT = 2;
+
+        int classify(int x, int y, int z);
+    }
+
+    private static final int COORDINATE_BITS = 10;
+    private static final int COORDINATE_MASK = (1 << COORDINATE_BITS) - 1;
+
+    private int minX;
+    private int minY;
+    private int minZ;
+    private int sizeX;
+    private int sizeY;
+    private int sizeZ;
+    private int words;
+
+    private long[] visited = new long[0];
+    private long[] inside = new long[0];
+    private long[] spanned = new long[0];
+    private int[] seeds = new int[64];
+    private int seedCount;
+    private int insideCount;
+
+    /**
+     * Prepares the fill for a new lake. Positions outside the box are never part of the lake;
+     * reaching one aborts the fill.
+     */
+    void reset(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.sizeX = maxX - minX + 1;
+        this.sizeY = maxY - minY + 1;
+        this.sizeZ = maxZ - minZ + 1;
+        if (sizeX > COORDINATE_MASK || sizeY > COORDINATE_MASK || sizeZ > COORDINATE_MASK) {
+            throw new IllegalArgumentException("Fill box is too large: " + sizeX + "x" + sizeY + "x" + sizeZ);
+        }
+        words = (sizeX * sizeY * sizeZ + 63) >>> 6;
+        if (visited.length < words) {
+            visited = new long[words];
+            inside = new long[words];
+            spanned = new long[words];
+        } else {
+            Arrays.fill(visited, 0, words, 0);
+            Arrays.fill(inside, 0, words, 0);
+            Arrays.fill(spanned, 0, words, 0);
+        }
+        seedCount = 0;
+        insideCount = 0;
+    }
+
+    /**
+     * Grows the lake from the given origin.
+     *
+     * @param vertical whether to grow up and down as well as horizontally
+     * @return false if the fill was aborted
+     */
+    boolean fill(int x, int y, int z, boolean vertical, Lakeness lakeness) {
+        int origin = classify(x - minX, y - minY, z - minZ, lakeness);
+        if (origin == Lakeness.ABORT) {
+            return false;
+        }
+        if (origin == Lakeness.OUTSIDE) {
+            return true;
+        }
+        pushSeed(x - minX, y - minY, z - minZ);
+        while (seedCount > 0) {
+            int seed = seeds[--seedCount];
+            int sx = seed & COORDINATE_MASK;
+            int sy = (seed >>> COORDINATE_BITS) & COORDINATE_MASK;
+            int sz = seed >>> (2 * COORDINATE_BITS);
+            if (get(spanned, index(sx, sy, sz))) {
+                continue;
+            }
+
+            // Grow the span as far as it goes in both directions along x.
+            int fromX = sx;
+            int toX = sx;
+            int next;
+            while ((next = extend(fromX - 1, sy, sz, lakeness)) == Lakeness.INSIDE) {
+                fromX--;
+            }
+            if (next == Lakeness.ABORT) {
+                return false;
+            }
+            while ((next = extend(toX + 1, sy, sz, lakeness)) == Lakeness.INSIDE) {
+                toX++;
+            }
+            if (next == Lakeness.ABORT) {
+                return false;
+            }
+            for (int rx = fromX; rx <= toX; rx++) {
+                set(spanned, index(rx, sy, sz));
+            }
+
+            if (!scanRow(fromX, toX, sy, sz - 1, lakeness) || !scanRow(fromX, toX, sy, sz + 1, lakeness)) {
+                return false;
+            }
+            if (vertical && (!scanRow(fromX, toX, sy - 1, sz, lakeness) || !scanRow(fromX, toX, sy + 1, sz, lakeness))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of blocks inside the lake
+     */
+    int insideCount() {
+        return insideCount;
+    }
+
+    /**
+     * @return the index of the next block inside the lake at or after the given index, or -1 if there are none
+     */
+    int nextInside(int fromIndex) {
+        return nextSetBit(inside, null, fromIndex);
+    }
+
+    /**
+     * @return the index of the next block next to the lake (classified, but outside it) at or after the given index,
+     * or -1 if there are none
+     */
+    int nextOutside(int fromIndex) {
+        return nextSetBit(visited, inside, fromIndex);
+    }
+
+    int x(int index) {
+        return minX + (index / sizeY) % sizeX;
+    }
+
+    int y(int index) {
+        return minY + index % sizeY;
+    }
+
+    int z(int index) {
+        return minZ + index / (sizeY * sizeX);
+    }
+
+    /**
+     * @return the blocks inside the lake
+     */
+    VoxelSet toVoxelSet() {
+        return VoxelSet.ofBits(minX, minY, minZ, sizeX, sizeY, sizeZ, Arrays.copyOf(inside, words));
+    }
+
+    private int extend(int rx, int ry, int rz, Lakeness lakeness) {
+        if (rx < 0 || rx >= sizeX) {
+            return Lakeness.ABORT;
+        }
+        int index = index(rx, ry, rz);
+        if (get(visited, index)) {
+            return get(inside, index) && !get(spanned, index) ? Lakeness.INSIDE : Lakeness.OUTSIDE;
+        }
+        return classify(rx, ry, rz, lakeness);
+    }
+
+    /**
+     * Classifies the row next to a span, queueing one seed for each run of blocks inside the lake that hasn't been spanned yet.
+     */
+    private boolean scanRow(int fromX, int toX, int ry, int rz, Lakeness lakeness) {
+        if (ry < 0 || ry >= sizeY || rz < 0 || rz >= sizeZ) {
+            return false;
+        }
+        boolean inRun = false;
+        for (int rx = fromX; rx <= toX; rx++) {
+            int index = index(rx, ry, rz);
+            int result;
+            if (get(visited, index)) {
+                result = get(inside, index) && !get(spanned, index) ? Lakeness.INSIDE : Lakeness.OUTSIDE;
+            } else {
+                result = classify(rx, ry, rz, lakeness);
+            }
+            if (result == Lakeness.ABORT) {
+                return false;
+            }
+            if (result == Lakeness.INSIDE) {
+                if (!inRun) {
+                    pushSeed(rx, ry, rz);
+                }
+                inRun = true;
+            } else {
+                inRun = false;
+            }
+        }
+        return true;
+    }
+
+    private int classify(int rx, int ry, int rz, Lakeness lakeness) {
+        int index = index(rx, ry, rz);
+        set(visited, index);
+        int result = lakeness.classify(minX + rx, minY + ry, minZ + rz);
+        if (result == Lakeness.INSIDE) {
+            set(inside, index);
+            insideCount++;
+        }
+        return result;
+    }
+
+    private void pushSeed(int rx, int ry, int rz) {
+        if (seedCount == seeds.length) {
+            seeds = Arrays.copyOf(seeds, seeds.length * 2);
+        }
+        seeds[seedCount++] = rx | ry << COORDINATE_BITS | rz << (2 * COORDINATE_BITS);
+    }
+
+    private int index(int rx, int ry, int rz) {
+        return ry + sizeY * (rx + sizeX * rz);
+    }
+
+    private int nextSetBit(long[] bits, long[] excluded, int fromIndex) {
+        int word = fromIndex >>> 6;
+        if (word >= words) {
+            return -1;
+        }
+        long current = bits[word] & (excluded == null ? -1L : ~excluded[word]) & (-1L << fromIndex);
+        while (current == 0) {
+            if (++word >= words) {
+                return -1;
+            }
+            current = bits[word] & (excluded == null ? -1L : ~excluded[word]);
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(current);
+    }
+
+    private static boolean get(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+}
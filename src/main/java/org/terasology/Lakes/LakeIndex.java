@@ -0,0 +1,355 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.joml.Vector3i;
+import org.joml.Vector3ic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.engine.entitySystem.entity.EntityRef;
+import org.terasology.engine.entitySystem.event.ReceiveEvent;
+import org.terasology.engine.entitySystem.systems.BaseComponentSystem;
+import org.terasology.engine.entitySystem.systems.RegisterSystem;
+import org.terasology.engine.registry.Share;
+import org.terasology.engine.world.WorldComponent;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
+import org.terasology.engine.world.chunks.Chunks;
+import org.terasology.engine.world.chunks.event.BeforeChunkUnload;
+import org.terasology.engine.world.chunks.event.OnChunkLoaded;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Answers where the lakes in the loaded part of the world are, for gameplay systems that would otherwise have to look
+ * at blocks. {@link LakeProvider} adds each lake it places, and when the world keeps a {@link LakeCatalog}, the lakes
+ * of chunks loaded from the save are read back from it, on a thread of its own rather than the one loading chunks.
+ * A lake is forgotten once none of the chunks it's in are loaded.
+ *
+ * Lakes are kept in buckets of chunk-sized columns. Each bucket is an array which is replaced, never changed,
+ * when a lake is added to or removed from it, so any number of threads can query the index without locking while
+ * it's being changed. Adding and removing lakes lock the index, so that a lake is always in all of its buckets or in
+ * none of them.
+ */
+@RegisterSystem
+@Share(LakeIndex.class)
+public class LakeIndex extends BaseComponentSystem {
+    private static final Logger logger = LoggerFactory.getLogger(LakeIndex.class);
+
+    private static final int BUCKET_SIZE = 32;
+    private static final Lake[] NO_LAKES = new Lake[0];
+
+    /**
+     * Each lake by its kind and origin, so that a lake placed by several regions is only added once. This, the origins
+     * and the buckets are only changed together, while holding the index's lock.
+     */
+    private final Map<Origin, Lake> lakes = new ConcurrentHashMap<>();
+    private final Map<Lake, Origin> origins = new IdentityHashMap<>();
+    private final Map<Long, Lake[]> buckets = new ConcurrentHashMap<>();
+    private final Set<Vector3i> loadedChunks = ConcurrentHashMap.newKeySet();
+    private volatile LakeCatalog catalog;
+    /** Reads the lakes of loaded chunks from the catalog, one chunk after another, behind the game's own threads. */
+    private final ExecutorService catalogReader = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "Lake index");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Adds a lake, unless one grown from the same origin has already been added.
+     */
+    public synchronized void add(boolean underground, Vector3ic origin, Lake lake) {
+        BlockRegionc bounds = lake.getBounds();
+        Origin key = new Origin(underground, origin);
+        if (bounds == null || lakes.putIfAbsent(key, lake) != null) {
+            return;
+        }
+        origins.put(lake, key);
+        for (int bx = Math.floorDiv(bounds.minX(), BUCKET_SIZE); bx <= Math.floorDiv(bounds.maxX(), BUCKET_SIZE); bx++) {
+            for (int bz = Math.floorDiv(bounds.minZ(), BUCKET_SIZE); bz <= Math.floorDiv(bounds.maxZ(), BUCKET_SIZE); bz++) {
+                buckets.merge(bucketKey(bx, bz), new Lake[]{lake}, (existing, added) -> {
+                    Lake[] merged = Arrays.copyOf(existing, existing.length + 1);
+                    merged[existing.length] = lake;
+                    return merged;
+                });
+            }
+        }
+    }
+
+    /**
+     * Sets the catalog the lakes of loaded chunks are read from, and starts reading those of the chunks already loaded.
+     *
+     * @param lakeCatalog the catalog of the world being played, or null once it's been closed
+     */
+    void setCatalog(LakeCatalog lakeCatalog) {
+        catalog = lakeCatalog;
+        if (lakeCatalog != null) {
+            for (Vector3i chunk : loadedChunks) {
+                readFromCatalog(lakeCatalog, chunk);
+            }
+        }
+    }
+
+    @ReceiveEvent(components = WorldComponent.class)
+    public void onChunkLoaded(OnChunkLoaded event, EntityRef worldEntity) {
+        Vector3i chunk = new Vector3i(event.getChunkPos());
+        loadedChunks.add(chunk);
+        LakeCatalog lakeCatalog = catalog;
+        if (lakeCatalog != null) {
+            readFromCatalog(lakeCatalog, chunk);
+        }
+    }
+
+    /**
+     * Forgets the lakes which are left without a loaded chunk. Lakes the provider added along with a generated chunk
+     * can reach into the neighbouring columns, so those are looked at too.
+     */
+    @ReceiveEvent(components = WorldComponent.class)
+    public synchronized void beforeChunkUnload(BeforeChunkUnload event, EntityRef worldEntity) {
+        Vector3ic chunk = event.getChunkPos();
+        loadedChunks.remove(new Vector3i(chunk));
+        int centerX = Math.floorDiv(chunk.x() * Chunks.SIZE_X, BUCKET_SIZE);
+        int centerZ = Math.floorDiv(chunk.z() * Chunks.SIZE_Z, BUCKET_SIZE);
+        for (int bx = centerX - 1; bx <= centerX + 1; bx++) {
+            for (int bz = centerZ - 1; bz <= centerZ + 1; bz++) {
+                for (Lake lake : bucket(bx, bz)) {
+                    if (!isLoaded(lake.getBounds())) {
+                        remove(lake);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        catalog = null;
+        // Reads under way are left to finish rather than interrupted, since interrupting a read closes the catalog's file.
+        catalogReader.shutdown();
+        loadedChunks.clear();
+        lakes.clear();
+        origins.clear();
+        buckets.clear();
+    }
+
+    /**
+     * @return the number of lakes known
+     */
+    public int size() {
+        return lakes.size();
+    }
+
+    /**
+     * @return whether the given block is part of a lake, as liquid or as the air above it
+     */
+    public boolean isInLake(Vector3ic pos) {
+        for (Lake lake : bucket(Math.floorDiv(pos.x(), BUCKET_SIZE), Math.floorDiv(pos.z(), BUCKET_SIZE))) {
+            if (lake.contains(pos.x(), pos.y(), pos.z())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the lake with a block closest to the given position, or null if no lake is within the given distance
+     */
+    public Lake nearestLake(Vector3ic pos, int maxDistance) {
+        long bestDistance = (long) maxDistance * maxDistance;
+        Lake best = null;
+        Set<Lake> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int bx = Math.floorDiv(pos.x() - maxDistance, BUCKET_SIZE); bx <= Math.floorDiv(pos.x() + maxDistance, BUCKET_SIZE); bx++) {
+            for (int bz = Math.floorDiv(pos.z() - maxDistance, BUCKET_SIZE); bz <= Math.floorDiv(pos.z() + maxDistance, BUCKET_SIZE); bz++) {
+                for (Lake lake : bucket(bx, bz)) {
+                    if (!seen.add(lake) || distanceSquared(lake.getBounds(), pos) > bestDistance) {
+                        continue;
+                    }
+                    long distance = distanceSquared(lake, pos);
+                    if (distance <= bestDistance) {
+                        bestDistance = distance;
+                        best = lake;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the lakes with at least one block in the given region
+     */
+    public List<Lake> lakesIntersecting(BlockRegionc region) {
+        List<Lake> result = new ArrayList<>();
+        Set<Lake> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int bx = Math.floorDiv(region.minX(), BUCKET_SIZE); bx <= Math.floorDiv(region.maxX(), BUCKET_SIZE); bx++) {
+            for (int bz = Math.floorDiv(region.minZ(), BUCKET_SIZE); bz <= Math.floorDiv(region.maxZ(), BUCKET_SIZE); bz++) {
+                for (Lake lake : bucket(bx, bz)) {
+                    if (seen.add(lake) && lake.intersects(region) && hasBlocksIn(lake, region)) {
+                        result.add(lake);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private void readFromCatalog(LakeCatalog lakeCatalog, Vector3i chunk) {
+        try {
+            catalogReader.execute(() -> addFromCatalog(lakeCatalog, chunk));
+        } catch (RejectedExecutionException e) {
+            // The index has been shut down.
+        }
+    }
+
+    /**
+     * Adds the lakes of a chunk from the catalog, unless the chunk was unloaded or the catalog closed before its turn.
+     */
+    private void addFromCatalog(LakeCatalog lakeCatalog, Vector3i chunk) {
+        if (catalog != lakeCatalog || !loadedChunks.contains(chunk)) {
+            return;
+        }
+        int minX = chunk.x() * Chunks.SIZE_X;
+        int minY = chunk.y() * Chunks.SIZE_Y;
+        int minZ = chunk.z() * Chunks.SIZE_Z;
+        BlockRegion region = new BlockRegion(minX, minY, minZ, minX + Chunks.SIZE_X - 1, minY + Chunks.SIZE_Y - 1, minZ + Chunks.SIZE_Z - 1);
+        try {
+            lakeCatalog.forEachLake(region, this::addIfLoaded);
+        } catch (IOException e) {
+            if (lakeCatalog.isOpen()) {
+                logger.warn("Couldn't read the lakes in {} from the catalog", region, e);
+            }
+        }
+    }
+
+    /**
+     * Adds a lake read from the catalog if any of its chunks is still loaded. Otherwise the chunks were unloaded while it
+     * was being read, and nothing would remove it again.
+     */
+    private synchronized void addIfLoaded(boolean underground, Vector3ic origin, Lake lake) {
+        if (lake.getBounds() != null && isLoaded(lake.getBounds())) {
+            add(underground, origin, lake);
+        }
+    }
+
+    /**
+     * @return whether any chunk within the bounds is loaded
+     */
+    private boolean isLoaded(BlockRegionc bounds) {
+        Vector3i chunk = new Vector3i();
+        for (int cx = Math.floorDiv(bounds.minX(), Chunks.SIZE_X); cx <= Math.floorDiv(bounds.maxX(), Chunks.SIZE_X); cx++) {
+            for (int cy = Math.floorDiv(bounds.minY(), Chunks.SIZE_Y); cy <= Math.floorDiv(bounds.maxY(), Chunks.SIZE_Y); cy++) {
+                for (int cz = Math.floorDiv(bounds.minZ(), Chunks.SIZE_Z); cz <= Math.floorDiv(bounds.maxZ(), Chunks.SIZE_Z); cz++) {
+                    if (loadedChunks.contains(chunk.set(cx, cy, cz))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes a lake that was added, along with its origin and from its buckets; the caller holds the lock.
+     */
+    private void remove(Lake lake) {
+        Origin key = origins.remove(lake);
+        if (key == null) {
+            return;
+        }
+        lakes.remove(key);
+        BlockRegionc bounds = lake.getBounds();
+        for (int bx = Math.floorDiv(bounds.minX(), BUCKET_SIZE); bx <= Math.floorDiv(bounds.maxX(), BUCKET_SIZE); bx++) {
+            for (int bz = Math.floorDiv(bounds.minZ(), BUCKET_SIZE); bz <= Math.floorDiv(bounds.maxZ(), BUCKET_SIZE); bz++) {
+                buckets.computeIfPresent(bucketKey(bx, bz), (bucketKey, existing) -> {
+                    Lake[] remaining = new Lake[existing.length];
+                    int count = 0;
+                    for (Lake other : existing) {
+                        if (other != lake) {
+                            remaining[count++] = other;
+                        }
+                    }
+                    return count == 0 ? null : Arrays.copyOf(remaining, count);
+                });
+            }
+        }
+    }
+
+    private Lake[] bucket(int bx, int bz) {
+        return buckets.getOrDefault(bucketKey(bx, bz), NO_LAKES);
+    }
+
+    private static boolean hasBlocksIn(Lake lake, BlockRegionc region) {
+        boolean[] found = new boolean[1];
+        lake.forEachRun(region, (x, z, floor, liquidTop, airTop) -> found[0] = true);
+        return found[0];
+    }
+
+    /**
+     * @return the squared distance from the position to the nearest block of the lake
+     */
+    private static long distanceSquared(Lake lake, Vector3ic pos) {
+        long[] best = {Long.MAX_VALUE};
+        lake.forEachRun((x, z, floor, liquidTop, airTop) -> {
+            long dx = x - pos.x();
+            long dy = pos.y() < floor ? floor - pos.y() : pos.y() > airTop ? pos.y() - airTop : 0;
+            long dz = z - pos.z();
+            best[0] = Math.min(best[0], dx * dx + dy * dy + dz * dz);
+        });
+        return best[0];
+    }
+
+    /**
+     * @return the squared distance from the position to the nearest block of the region
+     */
+    private static long distanceSquared(BlockRegionc region, Vector3ic pos) {
+        long dx = Math.max(0, Math.max(region.minX() - pos.x(), pos.x() - region.maxX()));
+        long dy = Math.max(0, Math.max(region.minY() - pos.y(), pos.y() - region.maxY()));
+        long dz = Math.max(0, Math.max(region.minZ() - pos.z(), pos.z() - region.maxZ()));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static long bucketKey(int bx, int bz) {
+        return ((long) bx << 32) | (bz & 0xFFFFFFFFL);
+    }
+
+    private static final class Origin {
+        final boolean underground;
+        final int x;
+        final int y;
+        final int z;
+
+        Origin(boolean underground, Vector3ic origin) {
+            this.underground = underground;
+            this.x = origin.x();
+            this.y = origin.y();
+            this.z = origin.z();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Origin)) {
+                return false;
+            }
+            Origin other = (Origin) o;
+            return underground == other.underground && x == other.x && y == other.y && z == other.z;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((x * 31 + y) * 31 + z) * 2 + (underground ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the lake candidates tried, what became of them and how long each part of generating lakes took,
+ * across every world generated in this process.
+ *
+ * The counts are kept all the time, since they only change once per candidate. Timing is off unless turned on
+ * with {@link #setTiming}, and then only costs a check of one flag.
+ */
+public final class LakeMetrics {
+    public enum Rejection {
+        /** The candidate is below sea level, or its shore is. */
+        UNDERWATER,
+        /** The surface lake's shape contains no blocks. */
+        EMPTY,
+        /** Information important to the lake's construction is outside the region being generated. */
+        MISSING_INFORMATION,
+        /** A surface lake column has no surface near the lake's height. */
+        NO_SURFACE,
+        /** The surface lake's shore is too sloped. */
+        TOO_SLOPED,
+        /** The underground lake breaches the surface. */
+        BREACH,
+        /** The underground lake's share of the voxel budget is too small for it. */
+        OVER_BUDGET
+    }
+
+    public enum Phase {
+        /** Finding candidates: everything {@link LakeProvider} does other than growing and carving lakes. */
+        SEARCH,
+        /** Growing candidates into lakes, or finding out they can't be placed. */
+        GROWTH,
+        /** Changing the terrain to make room for lakes. */
+        CARVING,
+        /** Writing lakes into chunks. */
+        RASTERIZATION,
+        /** Placing trees around lakes. */
+        TREES
+    }
+
+    private static final LongAdder[] REJECTIONS = newCounters(Rejection.values().length);
+    private static final LongAdder[] EARLY_REJECTIONS = newCounters(Rejection.values().length);
+    private static final LongAdder[] NANOS = newCounters(Phase.values().length);
+    private static final LongAdder SURFACE_CANDIDATES = new LongAdder();
+    private static final LongAdder UNDERGROUND_CANDIDATES = new LongAdder();
+    private static final LongAdder ACCEPTED = new LongAdder();
+    private static final LongAdder BLOCKS = new LongAdder();
+    private static final LongAdder OVERRUNS = new LongAdder();
+    private static final LongAdder OVERRUN_NANOS = new LongAdder();
+
+    private static volatile boolean timing;
+
+    private LakeMetrics() {
+    }
+
+    /**
+     * @param early whether the candidate was turned down before it was grown
+     */
+    public static void reject(Rejection reason, boolean early) {
+        (early ? EARLY_REJECTIONS : REJECTIONS)[reason.ordinal()].increment();
+    }
+
+    /**
+     * Counts a candidate which was grown, or found already grown.
+     */
+    public static void candidate(boolean underground) {
+        (underground ? UNDERGROUND_CANDIDATES : SURFACE_CANDIDATES).increment();
+    }
+
+    /**
+     * Counts a lake which was placed.
+     */
+    public static void accept(Lake lake) {
+        ACCEPTED.increment();
+        BLOCKS.add(lake.size());
+    }
+
+    /**
+     * Counts a region whose lakes took longer than the time budget.
+     *
+     * @param nanos how much longer than the budget it took
+     */
+    public static void overrun(long nanos) {
+        OVERRUNS.increment();
+        OVERRUN_NANOS.add(nanos);
+    }
+
+    public static boolean isTiming() {
+        return timing;
+    }
+
+    public static void setTiming(boolean enabled) {
+        timing = enabled;
+    }
+
+    /**
+     * @return the time to pass to {@link #stop} when the phase ends, or 0 if timing is off
+     */
+    public static long start() {
+        return timing ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Adds the time since {@link #start} was called to the phase, if timing was on then.
+     */
+    public static void stop(Phase phase, long start) {
+        if (start != 0) {
+            NANOS[phase.ordinal()].add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds time measured by the caller to the phase.
+     */
+    public static void record(Phase phase, long nanos) {
+        NANOS[phase.ordinal()].add(nanos);
+    }
+
+    /**
+     * @return the number of candidates turned down for the given reason, both before and during growth
+     */
+    public static long getRejections(Rejection reason) {
+        return REJECTIONS[reason.ordinal()].sum() + EARLY_REJECTIONS[reason.ordinal()].sum();
+    }
+
+    /**
+     * @return the number of candidates turned down for the given reason before they were grown
+     */
+    public static long getEarlyRejections(Rejection reason) {
+        return EARLY_REJECTIONS[reason.ordinal()].sum();
+    }
+
+    /**
+     * @return the current value of every count and timer
+     */
+    public static Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    /**
+     * Sets every count and timer back to zero.
+     */
+    public static void reset() {
+        for (LongAdder[] counters : new LongAdder[][]{REJECTIONS, EARLY_REJECTIONS, NANOS}) {
+            for (LongAdder counter : counters) {
+                counter.reset();
+            }
+        }
+        SURFACE_CANDIDATES.reset();
+        UNDERGROUND_CANDIDATES.reset();
+        ACCEPTED.reset();
+        BLOCKS.reset();
+        OVERRUNS.reset();
+        OVERRUN_NANOS.reset();
+    }
+
+    private static LongAdder[] newCounters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * The counts and timers at one moment. Counters are read one at a time while generation carries on,
+     * so they may not add up exactly.
+     */
+    public static final class Snapshot {
+        private final long surfaceCandidates = SURFACE_CANDIDATES.sum();
+        private final long undergroundCandidates = UNDERGROUND_CANDIDATES.sum();
+        private final long accepted = ACCEPTED.sum();
+        private final long blocks = BLOCKS.sum();
+        private final long overruns = OVERRUNS.sum();
+        private final long overrunNanos = OVERRUN_NANOS.sum();
+        private final Map<Rejection, Long> rejections = new EnumMap<>(Rejection.class);
+        private final Map<Rejection, Long> earlyRejections = new EnumMap<>(Rejection.class);
+        private final Map<Phase, Long> nanos = new EnumMap<>(Phase.class);
+
+        private Snapshot() {
+            for (Rejection reason : Rejection.values()) {
+                rejections.put(reason, getRejections(reason));
+                earlyRejections.put(reason, getEarlyRejections(reason));
+            }
+            for (Phase phase : Phase.values()) {
+                nanos.put(phase, NANOS[phase.ordinal()].sum());
+            }
+        }
+
+        public long getSurfaceCandidates() {
+            return surfaceCandidates;
+        }
+
+        public long getUndergroundCandidates() {
+            return undergroundCandidates;
+        }
+
+        public long getAccepted() {
+            return accepted;
+        }
+
+        /**
+         * @return the number of blocks in all the lakes placed
+         */
+        public long getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * @return the number of regions whose lakes took longer than the time budget
+         */
+        public long getOverruns() {
+            return overruns;
+        }
+
+        /**
+         * @return how much longer than the time budget those regions took altogether, in nanoseconds
+         */
+        public long getOverrunNanos() {
+            return overrunNanos;
+        }
+
+        /**
+         * @return the number of candidates turned down for each reason, both before and during growth
+         */
+        public Map<Rejection, Long> getRejections() {
+            return Collections.unmodifiableMap(rejections);
+        }
+
+        public Map<Rejection, Long> getEarlyRejections() {
+            return Collections.unmodifiableMap(earlyRejections);
+        }
+
+        /**
+         * @return the time spent in each phase, in nanoseconds, summed over every thread
+         */
+        public Map<Phase, Long> getNanos() {
+            return Collections.unmodifiableMap(nanos);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append("Candidates: ").append(surfaceCandidates).append(" surface, ")
+                .append(undergroundCandidates).append(" underground\n");
+            result.append("Placed: ").append(accepted).append(" lakes, ").append(blocks).append(" blocks\n");
+            result.append("Rejected (of which before growing):");
+            for (Rejection reason : Rejection.values()) {
+                result.append(' ').append(reason.name().toLowerCase()).append(' ').append(rejections.get(reason))
+                    .append(" (").append(earlyRejections.get(reason)).append(')');
+            }
+            result.append("\nOver time budget: ").append(overruns).append(" regions, by ")
+                .append(overrunNanos / 1_000_000).append("ms altogether");
+            result.append("\nTime:");
+            for (Phase phase : Phase.values()) {
+                result.append(' ').append(phase.name().toLowerCase()).append(' ').append(nanos.get(phase) / 1_000_000).append("ms");
+            }
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.terasology.engine.entitySystem.systems.BaseComponentSystem;
+import org.terasology.engine.entitySystem.systems.RegisterSystem;
+import org.terasology.engine.logic.console.commandSystem.annotations.Command;
+import org.terasology.engine.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.engine.logic.permission.PermissionManager;
+
+/**
+ * Console commands for looking at {@link LakeMetrics}.
+ */
+@RegisterSystem
+public class LakeMetricsCommands extends BaseComponentSystem {
+
+    @Command(shortDescription = "Shows how lake generation is going",
+            helpText = "Shows the lake candidates tried, why they were turned down, and the time spent on each phase if timing is on",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String lakeMetrics() {
+        return LakeMetrics.snapshot().toString();
+    }
+
+    @Command(shortDescription = "Turns timing of lake generation on or off",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String lakeTiming(@CommandParam("enabled") boolean enabled) {
+        LakeMetrics.setTiming(enabled);
+        return "Lake generation timing is " + (enabled ? "on" : "off");
+    }
+
+    @Command(shortDescription = "Sets the lake generation metrics back to zero",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String lakeMetricsReset() {
+        LakeMetrics.reset();
+        return "Lake generation metrics reset";
+    }
+}
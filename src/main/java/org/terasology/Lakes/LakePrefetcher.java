@@ -0,0 +1,179 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Guesses which regions will be generated next from the ones generated lately, and does the part of their work that
+ * doesn't depend on the terrain ahead of time, on a single low-priority thread.
+ *
+ * Regions are assumed to keep coming in the direction they have lately, as they do while a player travels. The next
+ * few regions that way are planned, and plans for regions that have dropped out of the guess are cancelled and taken
+ * out of the queue. At most a few plans are queued, and only a bounded number of finished ones are kept, so a wrong
+ * guess costs little. The thread stops when there's been nothing to plan for a while.
+ *
+ * @param <T> what planning a region produces
+ */
+final class LakePrefetcher<T> {
+    private static final Logger logger = LoggerFactory.getLogger(LakePrefetcher.class);
+
+    /** How many of the latest regions the direction is taken from. */
+    private static final int HISTORY = 8;
+    /** How many regions ahead are planned. */
+    private static final int LOOKAHEAD = 3;
+    private static final int QUEUE_CAPACITY = 2 * LOOKAHEAD;
+    private static final int MAX_PLANNED = 32;
+    private static final long IDLE_SECONDS = 30;
+
+    private final Function<BlockRegionc, T> planner;
+    private final ThreadPoolExecutor executor;
+    private final Deque<BlockRegion> history = new ArrayDeque<>();
+    private final Map<BlockRegion, FutureTask<?>> pending = new HashMap<>();
+    private final Map<BlockRegion, T> planned = new LinkedHashMap<BlockRegion, T>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BlockRegion, T> eldest) {
+            return size() > MAX_PLANNED;
+        }
+    };
+
+    /**
+     * @param planner does the work for a region, given the region of its lake facet; it must be thread-safe
+     */
+    LakePrefetcher(Function<BlockRegionc, T> planner) {
+        this.planner = planner;
+        this.executor = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable, "Lake prefetcher");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Takes the plan for a region which is about to be generated, and plans the regions likely to come after it.
+     *
+     * @param region the region of the lake facet being generated
+     * @return the plan for the region, or null if it wasn't planned or isn't finished yet
+     */
+    synchronized T take(BlockRegionc region) {
+        BlockRegion key = new BlockRegion(region);
+        T plan = planned.remove(key);
+        FutureTask<?> task = pending.remove(key);
+        if (task != null) {
+            // It's too late for it to help; the caller does the work itself.
+            cancel(task);
+        }
+        remember(key);
+        predict();
+        return plan;
+    }
+
+    /**
+     * Cancels everything that's planned, and stops the planning thread once it's done with the plan under way.
+     */
+    synchronized void shutdown() {
+        // Not interrupted: a plan may be reading the catalog, and an interrupted read closes the catalog's file.
+        executor.shutdown();
+        for (FutureTask<?> task : pending.values()) {
+            cancel(task);
+        }
+        pending.clear();
+        planned.clear();
+        history.clear();
+    }
+
+    private void remember(BlockRegion region) {
+        history.addLast(region);
+        if (history.size() > HISTORY) {
+            history.removeFirst();
+        }
+    }
+
+    /**
+     * Plans the regions ahead of the latest one, in the direction the recent ones have been moving.
+     */
+    private void predict() {
+        List<BlockRegion> guesses = new ArrayList<>();
+        BlockRegion newest = history.peekLast();
+        BlockRegion oldest = history.peekFirst();
+        if (newest != null && newest != oldest) {
+            int dx = (newest.minX() + newest.maxX()) - (oldest.minX() + oldest.maxX());
+            int dz = (newest.minZ() + newest.maxZ()) - (oldest.minZ() + oldest.maxZ());
+            // Diagonal movement moves along both axes; otherwise only along the main one.
+            int stepX = 2 * Math.abs(dx) >= Math.abs(dz) ? Integer.signum(dx) * newest.getSizeX() : 0;
+            int stepZ = 2 * Math.abs(dz) >= Math.abs(dx) ? Integer.signum(dz) * newest.getSizeZ() : 0;
+            if (stepX != 0 || stepZ != 0) {
+                for (int i = 1; i <= LOOKAHEAD; i++) {
+                    guesses.add(new BlockRegion(newest).translate(stepX * i, 0, stepZ * i));
+                }
+            }
+        }
+
+        Iterator<Map.Entry<BlockRegion, FutureTask<?>>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<BlockRegion, FutureTask<?>> entry = entries.next();
+            if (entry.getValue().isDone() || !guesses.contains(entry.getKey())) {
+                cancel(entry.getValue());
+                entries.remove();
+            }
+        }
+        for (BlockRegion guess : guesses) {
+            if (pending.containsKey(guess) || planned.containsKey(guess) || history.contains(guess)) {
+                continue;
+            }
+            FutureTask<?> task = new FutureTask<>(() -> plan(guess), null);
+            try {
+                executor.execute(task);
+                pending.put(guess, task);
+            } catch (RejectedExecutionException e) {
+                // The queue is full or the prefetcher has been shut down; the region will be generated as usual.
+                return;
+            }
+        }
+    }
+
+    /**
+     * Cancels a plan, and takes it out of the queue if it hasn't started, so that it doesn't hold a place there.
+     */
+    private void cancel(FutureTask<?> task) {
+        task.cancel(false);
+        executor.remove(task);
+    }
+
+    private void plan(BlockRegion region) {
+        T plan;
+        try {
+            plan = planner.apply(region);
+        } catch (RuntimeException e) {
+            logger.warn("Couldn't plan the lakes of {}", region, e);
+            return;
+        }
+        synchronized (this) {
+            // Only keep the plan if it's still wanted, and the region hasn't been generated meanwhile.
+            if (pending.remove(region) != null) {
+                planned.put(region, plan);
+            }
+        }
+    }
+}
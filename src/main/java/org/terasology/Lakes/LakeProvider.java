@@ -17,7 +17,10 @@ package org.terasology.Lakes;
 
 import org.joml.Vector3f;
 import org.joml.Vector3i;
-import org.terasology.engine.math.Direction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.engine.core.paths.PathManager;
+import org.terasology.engine.game.Game;
 import org.terasology.engine.registry.CoreRegistry;
 import org.terasology.engine.utilities.procedural.BrownianNoise;
 import org.terasology.engine.utilities.procedural.Noise;
@@ -26,7 +29,10 @@ import org.terasology.engine.utilities.procedural.SubSampledNoise;
 import org.terasology.engine.utilities.procedural.WhiteNoise;
 import org.terasology.engine.world.block.Block;
 import org.terasology.engine.world.block.BlockManager;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
 import org.terasology.engine.world.generation.Border3D;
+import org.terasology.engine.world.generation.ConfigurableFacetProvider;
 import org.terasology.engine.world.generation.Facet;
 import org.terasology.engine.world.generation.FacetBorder;
 import org.terasology.engine.world.generation.FacetProviderPlugin;
@@ -39,11 +45,20 @@ import org.terasology.engine.world.generation.facets.ElevationFacet;
 import org.terasology.engine.world.generation.facets.SeaLevelFacet;
 import org.terasology.engine.world.generation.facets.SurfacesFacet;
 import org.terasology.engine.world.generator.plugin.RegisterPlugin;
+import org.terasology.gestalt.entitysystem.component.Component;
+import org.terasology.nui.properties.Checkbox;
+import org.terasology.nui.properties.Range;
 
-import java.util.ArrayDeque;
-import java.util.HashSet;
-import java.util.Queue;
-import java.util.Set;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.stream.IntStream;
 
 
 /**
@@ -57,44 +72,249 @@ import java.util.Set;
  * If they breach the surface, they're cancelled.
  * The upper part of their cave is filled with air.
  * If they're sufficiently far underground, they're lava instead of water.
+ *
+ * Each lake belongs to the cell its origin is jittered within, and a region grows the lakes of the cells whose corners
+ * lie within its lake facet, so their origins are at most {@code SKIP_BLOCKS - 1} blocks outside it.
+ * Nothing a lake reads is further than {@link Lake#MAX_EXTENT} from its origin horizontally, so that's all the
+ * terrain needed around the lake facet.
  */
 @RegisterPlugin
 @Produces(LakeFacet.class)
 @Updates({
-        @Facet(value = SurfacesFacet.class, border = @FacetBorder(sides = Lake.MAX_RADIUS * 3, bottom = Lake.MAX_DEPTH + 3, top = Lake.MAX_DEPTH + 3)),
-        @Facet(value = DensityFacet.class, border = @FacetBorder(sides = Lake.MAX_RADIUS * 3, bottom = Lake.MAX_DEPTH + 3, top = Lake.MAX_DEPTH + 3))
+        @Facet(value = SurfacesFacet.class, border = @FacetBorder(sides = Lake.MAX_EXTENT + LakeProvider.SKIP_BLOCKS - 1, bottom = Lake.MAX_DEPTH + 3, top = Lake.MAX_DEPTH + 3)),
+        @Facet(value = DensityFacet.class, border = @FacetBorder(sides = Lake.MAX_EXTENT + LakeProvider.SKIP_BLOCKS - 1, bottom = Lake.MAX_DEPTH + 3, top = Lake.MAX_DEPTH + 3))
 })
 @Requires({
-    @Facet(value = ElevationFacet.class, border = @FacetBorder(sides = Lake.MAX_RADIUS * 2)),
+    // Elevation is only read at underground lake origins.
+    @Facet(value = ElevationFacet.class, border = @FacetBorder(sides = LakeProvider.SKIP_BLOCKS - 1)),
     @Facet(value = SeaLevelFacet.class)
 })
-public class LakeProvider implements FacetProviderPlugin {
-    private static final int SKIP_BLOCKS = 3;
+public class LakeProvider implements ConfigurableFacetProvider, FacetProviderPlugin {
+    private static final Logger logger = LoggerFactory.getLogger(LakeProvider.class);
+
+    static final int SKIP_BLOCKS = 3;
     private static final float SURFACE_FREQUENCY = 0.0003f;
     private static final float SURFACE_EFFECTIVE_FREQUENCY = SURFACE_FREQUENCY * SKIP_BLOCKS * SKIP_BLOCKS * SKIP_BLOCKS;
     private static final float UNDERGROUND_FREQUENCY = 0.000001f;
     private static final float UNDERGROUND_EFFECTIVE_FREQUENCY = UNDERGROUND_FREQUENCY * SKIP_BLOCKS * SKIP_BLOCKS * SKIP_BLOCKS;
     private static final float SURFACE_LAKE_IRREGULARITY = 1.3f;
     private static final float UNDERGROUND_LAKE_IRREGULARITY = 1.3f;
+    private static final int NO_SURFACE = Integer.MIN_VALUE;
+    private static final float MIN_UNDERGROUND_WIDTH = 3;
+    private static final float MIN_UNDERGROUND_DEPTH = 2;
+    /** The largest magnitude of depthModifyingNoise. */
+    private static final float NOISE_AMPLITUDE = 1;
+    /** The names of the growth pool's threads start with this. */
+    static final String GROWTH_THREAD_NAME = "Lake growth ";
+    /**
+     * Where regions' lakes are grown in parallel. The engine already generates several regions at once, so this is
+     * shared by all of them and kept to half the cores, rather than using the common pool everything else in the game
+     * shares.
+     */
+    static final ForkJoinPool GROWTH_POOL = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName(GROWTH_THREAD_NAME + thread.getPoolIndex());
+        return thread;
+    }, null, false);
 
     Block water;
     Block lava;
+    /**
+     * Set for providers working on made-up terrain, such as a planner's, so that their lakes never reach the game's
+     * catalog or index.
+     */
+    boolean isolated;
 
+    private long seed;
     private WhiteNoise noise;
     private Noise depthModifyingNoise;
+    private UndergroundLakeSampler undergroundSampler;
+    private ThreadLocal<Workspace> workspaces;
+    private final LakeCache cache = new LakeCache(LakeCache.DEFAULT_CAPACITY);
+    /** Offered to new worlds, which place underground lakes the new way unless told otherwise. */
+    private Configuration configuration = Configuration.forNewWorld();
+    /**
+     * Whether the world came with a stored configuration. Worlds which didn't were created before there was one,
+     * so they keep the legacy underground layout whatever the configuration offered to new worlds says.
+     */
+    private boolean configured;
+    /** Read without locking on every cache miss, from all the threads generating regions; only opened under the lock. */
+    private volatile LakeCatalog catalog;
+    private volatile boolean catalogUnavailable;
+    private LakePrefetcher<Map<Long, List<Vector3i>>> prefetcher;
 
     @Override
     public void setSeed(long seed) {
         // to change the seed value
+        stopPrefetcher();
+        closeLakeCatalog();
+        this.seed = seed;
         noise = new WhiteNoise(seed * 3882);
         depthModifyingNoise = new SubSampledNoise(new BrownianNoise(new SimplexNoise(seed * 3883), 2), new Vector3f(0.05f, 0.05f, 0.05f), 1);
+        Noise tileNoise = depthModifyingNoise;
+        workspaces = ThreadLocal.withInitial(() -> new Workspace(tileNoise));
+        undergroundSampler = new UndergroundLakeSampler(seed, SKIP_BLOCKS, UNDERGROUND_EFFECTIVE_FREQUENCY);
         BlockManager blockManager = CoreRegistry.get(BlockManager.class);
-        water = blockManager.getBlock("CoreAssets:Water");
-        lava = blockManager.getBlock("CoreAssets:Lava");
+        if (blockManager != null) {
+            // Outside a game, such as in benchmarks, the liquids are set directly instead.
+            water = blockManager.getBlock("CoreAssets:Water");
+            lava = blockManager.getBlock("CoreAssets:Lava");
+        }
+    }
+
+    @Override
+    public void initialize() {
+        // The catalog is opened up front, rather than when the first region is generated, so that the index can read
+        // the lakes of chunks loaded from the save before then.
+        getLakeCatalog();
+    }
+
+    @Override
+    public String getConfigurationName() {
+        return "Lakes";
+    }
+
+    @Override
+    public Component getConfiguration() {
+        return configuration;
+    }
+
+    @Override
+    public void setConfiguration(Component configuration) {
+        this.configuration = (Configuration) configuration;
+        this.configured = true;
+    }
+
+    /**
+     * @return the cache of lakes shared between the regions generated by this provider
+     */
+    public LakeCache getLakeCache() {
+        return cache;
+    }
+
+    /**
+     * Opens the catalog of the current game's lakes the first time it's needed.
+     *
+     * @return the catalog, or null if it's turned off, can't be opened, or was closed along with the game
+     */
+    public LakeCatalog getLakeCatalog() {
+        LakeCatalog opened = catalog;
+        if (opened != null && !opened.isOpen()) {
+            // LakeCatalogSystem closes every catalog when the game ends, while this provider may live on until the
+            // next world is set up; it then keeps no lakes rather than failing on every lookup.
+            return null;
+        }
+        if (opened != null || isolated || !configuration.persistentCatalog || catalogUnavailable) {
+            return opened;
+        }
+        return openLakeCatalog();
+    }
+
+    private synchronized LakeCatalog openLakeCatalog() {
+        if (catalog == null && !catalogUnavailable) {
+            Game game = CoreRegistry.get(Game.class);
+            if (game == null) {
+                catalogUnavailable = true;
+                return null;
+            }
+            Path directory = PathManager.getInstance().getSavePath(game.getName()).resolve("lakes");
+            try {
+                catalog = LakeCatalog.open(directory, seed, water, lava);
+            } catch (IOException e) {
+                logger.error("Couldn't open the lake catalog in {}, lakes won't be kept", directory, e);
+                catalogUnavailable = true;
+                return null;
+            }
+            LakeIndex index = CoreRegistry.get(LakeIndex.class);
+            if (index != null) {
+                index.setCatalog(catalog);
+            }
+        }
+        return catalog;
+    }
+
+    private synchronized void closeLakeCatalog() {
+        if (catalog != null) {
+            LakeIndex index = CoreRegistry.get(LakeIndex.class);
+            if (index != null) {
+                index.setCatalog(null);
+            }
+            try {
+                catalog.close();
+            } catch (IOException e) {
+                logger.warn("Couldn't close the lake catalog", e);
+            }
+        }
+        catalog = null;
+        catalogUnavailable = false;
+    }
+
+    /**
+     * Starts guessing which regions come next the first time it's needed.
+     *
+     * @return the prefetcher, or null if it's turned off
+     */
+    private synchronized LakePrefetcher<Map<Long, List<Vector3i>>> getPrefetcher() {
+        if (!configuration.backgroundPlanning) {
+            return null;
+        }
+        if (prefetcher == null) {
+            prefetcher = new LakePrefetcher<>(this::plan);
+        }
+        return prefetcher;
+    }
+
+    private synchronized void stopPrefetcher() {
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+        }
+        prefetcher = null;
+    }
+
+    /**
+     * Does what can be done for a region before its terrain is known: reads the lakes the catalog has for it into the
+     * cache, and picks its underground lake cells. The lakes themselves can only be grown once the terrain is there.
+     *
+     * @param lakeRegion the region of the lake facet
+     * @return the region's underground lake cells by column, or null if they're tested one at a time instead
+     */
+    private Map<Long, List<Vector3i>> plan(BlockRegionc lakeRegion) {
+        long plannedSeed = seed;
+        LakeCatalog lakeCatalog = getLakeCatalog();
+        if (lakeCatalog != null) {
+            try {
+                // Lakes are checked against the region's terrain and voxel budget as usual when they're taken from the cache.
+                lakeCatalog.forEachLake(lakeRegion, (underground, origin, lake) -> cache.put(plannedSeed, underground, origin, lake));
+            } catch (IOException e) {
+                if (lakeCatalog.isOpen()) {
+                    logger.warn("Couldn't read the lakes in {} from the catalog", lakeRegion, e);
+                }
+            }
+        }
+        return isLegacySampling() ? null : sampleUndergroundCells(lakeRegion);
+    }
+
+    /**
+     * @return the underground lake cells whose corners are in the region, by column
+     */
+    private Map<Long, List<Vector3i>> sampleUndergroundCells(BlockRegionc lakeRegion) {
+        Map<Long, List<Vector3i>> undergroundCells = new HashMap<>();
+        int startX = Math.floorDiv(lakeRegion.minX(), SKIP_BLOCKS) * SKIP_BLOCKS;
+        int startY = Math.floorDiv(lakeRegion.minY(), SKIP_BLOCKS) * SKIP_BLOCKS;
+        int startZ = Math.floorDiv(lakeRegion.minZ(), SKIP_BLOCKS) * SKIP_BLOCKS;
+        for (Vector3i cell : undergroundSampler.sampleCells(startX, startY, startZ, lakeRegion.maxX(), lakeRegion.maxY(), lakeRegion.maxZ())) {
+            undergroundCells.computeIfAbsent(columnKey(cell.x, cell.z), key -> new ArrayList<>()).add(cell);
+        }
+        return undergroundCells;
+    }
+
+    private boolean isLegacySampling() {
+        return !configured || configuration.legacyUndergroundSampling;
     }
 
     @Override
     public void process(GeneratingRegion region) {
+        long processStarted = System.nanoTime();
         SurfacesFacet surfacesFacet = region.getRegionFacet(SurfacesFacet.class);
         DensityFacet densityFacet = region.getRegionFacet(DensityFacet.class);
         ElevationFacet elevationFacet = region.getRegionFacet(ElevationFacet.class);
@@ -110,193 +330,821 @@ public class LakeProvider implements FacetProviderPlugin {
                 Math.floorDiv(min.z, SKIP_BLOCKS) * SKIP_BLOCKS
         );
 
-        for (int wx0 = start.x; wx0 <= facet.getWorldRegion().maxX(); wx0 += SKIP_BLOCKS) {
-            for (int wz0 = start.z; wz0 <= facet.getWorldRegion().maxZ(); wz0 += SKIP_BLOCKS) {
-                // underground lakes
-                for (int wy0 = start.y; wy0 <= facet.getWorldRegion().maxY(); wy0 += SKIP_BLOCKS) {
-                    if (Math.abs(noise.noise(wx0, wz0, wy0)) < UNDERGROUND_EFFECTIVE_FREQUENCY) {
-                        int wx = wx0 + Math.floorMod(noise.intNoise(wx0, wy0, wz0 + 1), SKIP_BLOCKS);
-                        int wy = wy0 + Math.floorMod(noise.intNoise(wx0, wy0, wz0 + 2), SKIP_BLOCKS);
-                        int wz = wz0 + Math.floorMod(noise.intNoise(wx0, wy0, wz0 + 3), SKIP_BLOCKS);
-                        if (!elevationFacet.getWorldArea().contains(wx, wz) || !densityFacet.getWorldRegion().contains(wx, wy, wz)) {
-                            continue;
-                        }
-                        float depth = elevationFacet.getWorld(wx, wz) - wy;
-                        if (depth > 20 && densityFacet.getWorld(wx, wy, wz) > 0) {
-                            generateUndergroundLake(new Vector3i(wx, wy, wz), facet, densityFacet, depth);
-                        }
+        // The lakes themselves are always grown here, against this region's terrain; planning ahead only saves the rest.
+        LakePrefetcher<Map<Long, List<Vector3i>>> lakePrefetcher = getPrefetcher();
+        Map<Long, List<Vector3i>> undergroundCells = lakePrefetcher == null ? null : lakePrefetcher.take(facet.getWorldRegion());
+        if (isLegacySampling()) {
+            undergroundCells = null;
+        } else if (undergroundCells == null) {
+            long started = LakeMetrics.start();
+            undergroundCells = sampleUndergroundCells(facet.getWorldRegion());
+            LakeMetrics.stop(LakeMetrics.Phase.SEARCH, started);
+        }
+
+        RegionContext context = new RegionContext(facet, surfacesFacet, densityFacet, elevationFacet, seaLevelFacet.getSeaLevel(),
+                start.y, undergroundCells, isolated ? null : CoreRegistry.get(LakeIndex.class));
+        int columnsX = (facet.getWorldRegion().maxX() - start.x) / SKIP_BLOCKS + 1;
+        int columnsZ = (facet.getWorldRegion().maxZ() - start.z) / SKIP_BLOCKS + 1;
+        if (configuration.parallelGrowth) {
+            // Grow every column's lakes at once against the terrain as it is now, then commit them in the usual order.
+            // A column whose growth read something an earlier lake has since carved is grown again, so the result
+            // is the same as growing everything in order.
+            ColumnResult[] results = new ColumnResult[columnsX * columnsZ];
+            GROWTH_POOL.submit(() -> IntStream.range(0, results.length).parallel().forEach(i -> {
+                ColumnResult result = new ColumnResult();
+                growColumn(context, start.x + (i / columnsZ) * SKIP_BLOCKS, start.z + (i % columnsZ) * SKIP_BLOCKS, result);
+                results[i] = result;
+            })).join();
+            for (int i = 0; i < results.length; i++) {
+                if (isUnaffected(context, results[i])) {
+                    for (Attempt attempt : results[i].attempts) {
+                        commit(context, attempt);
                     }
+                } else {
+                    growColumn(context, start.x + (i / columnsZ) * SKIP_BLOCKS, start.z + (i % columnsZ) * SKIP_BLOCKS, null);
                 }
+            }
+        } else {
+            for (int i = 0; i < columnsX * columnsZ; i++) {
+                growColumn(context, start.x + (i / columnsZ) * SKIP_BLOCKS, start.z + (i % columnsZ) * SKIP_BLOCKS, null);
+            }
+        }
+        region.setRegionFacet(LakeFacet.class, facet);
+
+        // Running out of time can only be reported: acting on it would make the lakes depend on how busy the machine is.
+        long budgetNanos = (long) (configuration.regionTimeBudget * 1_000_000);
+        long elapsed = System.nanoTime() - processStarted;
+        if (budgetNanos > 0 && elapsed > budgetNanos) {
+            LakeMetrics.overrun(elapsed - budgetNanos);
+            logger.debug("Placing the lakes of {} took {}ms, over the budget of {}ms",
+                region.getRegion(), elapsed / 1_000_000, configuration.regionTimeBudget);
+        }
+    }
+
+    /**
+     * Grows the lake candidates in one column of cells.
+     *
+     * @param speculative where to collect the results without changing the terrain, or null to commit each lake as it's grown
+     */
+    private void growColumn(RegionContext context, int wx0, int wz0, ColumnResult speculative) {
+        if (!LakeMetrics.isTiming()) {
+            searchColumn(context, wx0, wz0, speculative);
+            return;
+        }
+        Workspace workspace = workspaces.get();
+        long timedBefore = workspace.timedNanos;
+        long started = System.nanoTime();
+        searchColumn(context, wx0, wz0, speculative);
+        // Whatever wasn't spent growing or carving lakes went on finding them.
+        LakeMetrics.record(LakeMetrics.Phase.SEARCH, System.nanoTime() - started - (workspace.timedNanos - timedBefore));
+    }
 
-                // surface lakes
-                int wx = wx0 + Math.floorMod(noise.intNoise(wx0, wz0, 0), SKIP_BLOCKS);
-                int wz = wz0 + Math.floorMod(noise.intNoise(wx0, wz0, 1), SKIP_BLOCKS);
-                if (!surfacesFacet.getWorldRegion().contains(wx, surfacesFacet.getWorldRegion().minY(), wz)) {
-                    continue;
+    private void searchColumn(RegionContext context, int wx0, int wz0, ColumnResult speculative) {
+        // underground lakes
+        if (context.undergroundCells == null) {
+            for (int wy0 = context.startY; wy0 <= context.lakes.getWorldRegion().maxY(); wy0 += SKIP_BLOCKS) {
+                if (Math.abs(noise.noise(wx0, wz0, wy0)) < UNDERGROUND_EFFECTIVE_FREQUENCY) {
+                    tryUndergroundLake(context, wx0, wy0, wz0, speculative);
                 }
-                for (int wy : surfacesFacet.getWorldColumn(wx, wz)) {
-                    if (Math.abs(noise.noise(wx, wy, wz)) < SURFACE_EFFECTIVE_FREQUENCY) {
-                        generateSurfaceLake(new Vector3i(wx, wy, wz), facet, surfacesFacet, densityFacet, seaLevelFacet.getSeaLevel());
-                    }
+            }
+        } else {
+            for (Vector3i cell : context.undergroundCells.getOrDefault(columnKey(wx0, wz0), Collections.emptyList())) {
+                tryUndergroundLake(context, cell.x, cell.y, cell.z, speculative);
+            }
+        }
+
+        // surface lakes
+        int wx = wx0 + Math.floorMod(noise.intNoise(wx0, wz0, 0), SKIP_BLOCKS);
+        int wz = wz0 + Math.floorMod(noise.intNoise(wx0, wz0, 1), SKIP_BLOCKS);
+        BlockRegionc surfacesRegion = context.surfaces.getWorldRegion();
+        if (!surfacesRegion.contains(wx, surfacesRegion.minY(), wz)) {
+            return;
+        }
+        if (speculative != null) {
+            speculative.reads.add(new BlockRegion(wx, surfacesRegion.minY(), wz).union(wx, surfacesRegion.maxY(), wz));
+        }
+        // The candidates are listed before any of them is carved, so carving can't change which ones are tried.
+        List<Integer> candidates = new ArrayList<>();
+        for (int wy : context.surfaceColumns.get(wx, wz)) {
+            if (Math.abs(noise.noise(wx, wy, wz)) < SURFACE_EFFECTIVE_FREQUENCY) {
+                candidates.add(wy);
+            }
+        }
+        for (int wy : candidates) {
+            Vector3i origin = new Vector3i(wx, wy, wz);
+            Lake lake = findLake(context, false, origin, 1, surfacesRegion, context.density.getWorldRegion());
+            if (lake != null) {
+                reuse(context, speculative, new Attempt(origin, false, lake, true, null, false));
+                continue;
+            }
+            Workspace workspace = workspaces.get();
+            workspace.begin();
+            long started = LakeMetrics.start();
+            lake = generateSurfaceLake(workspace, origin, context.surfaces, context.surfaceColumns, context.density, context.seaLevel);
+            workspace.stop(LakeMetrics.Phase.GROWTH, started);
+            if (speculative != null && workspace.reads != null) {
+                speculative.reads.add(workspace.reads);
+            }
+            record(context, speculative, new Attempt(origin, false, lake, false, workspace.rejection, workspace.early));
+        }
+    }
+
+    /**
+     * Places the underground lake candidate within the cell starting at the given corner, if there is room for it.
+     */
+    private void tryUndergroundLake(RegionContext context, int wx0, int wy0, int wz0, ColumnResult speculative) {
+        Vector3i origin = undergroundOrigin(wx0, wy0, wz0);
+        int wx = origin.x;
+        int wy = origin.y;
+        int wz = origin.z;
+        DensityFacet densityFacet = context.density;
+        if (!context.elevation.getWorldArea().contains(wx, wz) || !densityFacet.getWorldRegion().contains(wx, wy, wz)) {
+            return;
+        }
+        float depth = context.elevation.getWorld(wx, wz) - wy;
+        if (depth <= 20) {
+            return;
+        }
+        if (speculative != null) {
+            speculative.reads.add(new BlockRegion(wx, wy, wz));
+        }
+        if (densityFacet.getWorld(wx, wy, wz) > 0) {
+            float scale = budgetScale(wx0, wy0, wz0);
+            Lake lake = findLake(context, true, origin, scale, densityFacet.getWorldRegion());
+            if (lake != null) {
+                reuse(context, speculative, new Attempt(origin, true, lake, true, null, false));
+                return;
+            }
+            Workspace workspace = workspaces.get();
+            workspace.begin();
+            long started = LakeMetrics.start();
+            lake = generateUndergroundLake(workspace, origin, densityFacet, depth, scale);
+            workspace.stop(LakeMetrics.Phase.GROWTH, started);
+            if (speculative != null && workspace.reads != null) {
+                speculative.reads.add(workspace.reads);
+            }
+            record(context, speculative, new Attempt(origin, true, lake, false, workspace.rejection, workspace.early));
+        }
+    }
+
+    /**
+     * Looks for a lake grown earlier, in the cache or else in the catalog.
+     *
+     * @param scale how much of its size the lake keeps under the current voxel budget. Lakes grown under a different
+     *              budget are turned down, since they'd be the wrong size.
+     * @param available the parts of the world the caller has information about
+     * @return the lake grown from the given origin, if it could have been grown within the available regions and
+     * nothing carved in this region so far touches what it was grown from
+     */
+    private Lake findLake(RegionContext context, boolean underground, Vector3i origin, float scale, BlockRegionc... available) {
+        Lake lake = cache.get(seed, underground, origin, available);
+        if (lake != null) {
+            return lake.getScale() != scale || overlapsAny(context.carved, lake.getExtent()) ? null : lake;
+        }
+        LakeCatalog lakeCatalog = getLakeCatalog();
+        if (lakeCatalog == null) {
+            return null;
+        }
+        try {
+            lake = lakeCatalog.get(underground, origin);
+        } catch (IOException e) {
+            if (lakeCatalog.isOpen()) {
+                logger.warn("Couldn't read the lake at {} from the catalog", origin, e);
+            }
+            return null;
+        }
+        if (lake == null || lake.getScale() != scale) {
+            return null;
+        }
+        for (BlockRegionc region : available) {
+            if (!lake.fitsWithin(region)) {
+                return null;
+            }
+        }
+        cache.put(seed, underground, origin, lake);
+        return overlapsAny(context.carved, lake.getExtent()) ? null : lake;
+    }
+
+    /**
+     * Records a lake taken from the cache or catalog. Whether it may be used depends on everything within its extent,
+     * so a speculative column counts the extent as read, and is grown again if an earlier lake carves there.
+     */
+    private void reuse(RegionContext context, ColumnResult speculative, Attempt attempt) {
+        if (speculative != null) {
+            speculative.reads.add(attempt.lake.getExtent());
+        }
+        record(context, speculative, attempt);
+    }
+
+    private void record(RegionContext context, ColumnResult speculative, Attempt attempt) {
+        if (speculative == null) {
+            commit(context, attempt);
+        } else {
+            attempt.readsBefore = speculative.reads.size();
+            speculative.attempts.add(attempt);
+        }
+    }
+
+    /**
+     * Places a grown lake in the region, or counts why it was turned down.
+     */
+    private void commit(RegionContext context, Attempt attempt) {
+        Lake lake = attempt.lake;
+        LakeMetrics.candidate(attempt.underground);
+        if (lake == null) {
+            if (attempt.rejection != null) {
+                LakeMetrics.reject(attempt.rejection, attempt.early);
+            }
+            return;
+        }
+        // A lake grown over something this region has already carved differs from the lake other regions would grow,
+        // so it's kept to this region.
+        if (!attempt.cached && lake.getExtent() != null && !overlapsAny(context.carved, lake.getExtent())) {
+            cache.put(seed, attempt.underground, attempt.origin, lake);
+            LakeCatalog lakeCatalog = getLakeCatalog();
+            if (lakeCatalog != null) {
+                try {
+                    lakeCatalog.add(attempt.underground, attempt.origin, lake);
+                } catch (IOException e) {
+                    logger.warn("Couldn't add the lake at {} to the catalog", attempt.origin, e);
                 }
             }
         }
-        region.setRegionFacet(LakeFacet.class, facet);
+        long started = LakeMetrics.start();
+        lake.getCarving().apply(context.density, context.surfaces);
+        workspaces.get().stop(LakeMetrics.Phase.CARVING, started);
+        LakeMetrics.accept(lake);
+        if (lake.getCarving().getBounds() != null) {
+            context.carved.add(lake.getCarving().getBounds());
+            context.surfaceColumns.invalidate(lake.getCarving().getBounds());
+        }
+        context.lakes.add(lake);
+        if (context.index != null) {
+            context.index.add(attempt.underground, attempt.origin, lake);
+        }
     }
 
-    private void generateUndergroundLake(Vector3i origin, LakeFacet facet, DensityFacet densityFacet, float distanceBelowGround) {
-        float width = square(noise.noise(origin.x, origin.y, origin.z + 4)) * (Lake.MAX_RADIUS - 3) + 3;
-        float depth = Math.abs(noise.noise(origin.x, origin.y, origin.z + 5)) * (width / 2 - 2) + 2;
-        Set<Vector3i> content = new HashSet<>();
-        Queue<Vector3i> frontier = new ArrayDeque<>();
-        frontier.add(origin);
-        while (!frontier.isEmpty()) {
-            Vector3i pos = frontier.remove();
-            if (content.contains(pos)) {
+    /**
+     * @return whether the column's lakes, grown before anything in the region was carved, are the same as they would be
+     * if they were grown now: nothing carved so far, nor by the column's own earlier lakes, touches what they read
+     */
+    private static boolean isUnaffected(RegionContext context, ColumnResult result) {
+        for (BlockRegionc carved : context.carved) {
+            for (BlockRegionc read : result.reads) {
+                if (overlaps(carved, read)) {
+                    return false;
+                }
+            }
+        }
+        for (Attempt attempt : result.attempts) {
+            BlockRegionc carved = attempt.lake == null ? null : attempt.lake.getCarving().getBounds();
+            if (carved == null) {
                 continue;
             }
-            float lakeness = 1 + UNDERGROUND_LAKE_IRREGULARITY * depthModifyingNoise.noise(pos.x, pos.y, pos.z)
-                - square((pos.x - origin.x) / width)
-                - square((pos.y - origin.y) / depth)
-                - square((pos.z - origin.z) / width);
-            if (lakeness > 0) {
-                if (!densityFacet.getWorldRegion().contains(pos) || densityFacet.getWorld(pos) <= 0) {
-                    // The lake breaches the surface. Abort.
-                    return;
+            for (int i = attempt.readsBefore; i < result.reads.size(); i++) {
+                if (overlaps(carved, result.reads.get(i))) {
+                    return false;
                 }
-                content.add(pos);
-                frontier.add(Direction.FORWARD.asVector3i().add(pos, new Vector3i()));
-                frontier.add(Direction.BACKWARD.asVector3i().add(pos, new Vector3i()));
-                frontier.add(Direction.LEFT.asVector3i().add(pos, new Vector3i()));
-                frontier.add(Direction.RIGHT.asVector3i().add(pos, new Vector3i()));
-                frontier.add(Direction.UP.asVector3i().add(pos, new Vector3i()));
-                frontier.add(Direction.DOWN.asVector3i().add(pos, new Vector3i()));
             }
         }
-        facet.add(new Lake(origin.y, content, distanceBelowGround > 100 ? lava : water));
+        return true;
     }
 
-    private void generateSurfaceLake(Vector3i origin, LakeFacet facet, SurfacesFacet surfaces, DensityFacet density, int seaLevel) {
+    private static boolean overlapsAny(List<BlockRegionc> carved, BlockRegionc box) {
+        for (BlockRegionc region : carved) {
+            if (overlaps(region, box)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean overlaps(BlockRegionc a, BlockRegionc b) {
+        return a.minX() <= b.maxX() && b.minX() <= a.maxX()
+            && a.minY() <= b.maxY() && b.minY() <= a.maxY()
+            && a.minZ() <= b.maxZ() && b.minZ() <= a.maxZ();
+    }
+
+    private static long columnKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return where the underground lake candidate in the cell starting at the given corner is
+     */
+    private Vector3i undergroundOrigin(int wx0, int wy0, int wz0) {
+        return new Vector3i(
+            wx0 + Math.floorMod(noise.intNoise(wx0, wy0, wz0 + 1), SKIP_BLOCKS),
+            wy0 + Math.floorMod(noise.intNoise(wx0, wy0, wz0 + 2), SKIP_BLOCKS),
+            wz0 + Math.floorMod(noise.intNoise(wx0, wy0, wz0 + 3), SKIP_BLOCKS));
+    }
+
+    private float undergroundWidth(Vector3i origin) {
+        return square(noise.noise(origin.x, origin.y, origin.z + 4)) * (Lake.MAX_RADIUS - MIN_UNDERGROUND_WIDTH) + MIN_UNDERGROUND_WIDTH;
+    }
+
+    private float undergroundDepth(Vector3i origin, float width) {
+        return Math.abs(noise.noise(origin.x, origin.y, origin.z + 5)) * (width / 2 - MIN_UNDERGROUND_DEPTH) + MIN_UNDERGROUND_DEPTH;
+    }
+
+    /**
+     * @return the most blocks the underground lake grown from the given origin could have, before any budget
+     */
+    private float undergroundVolume(Vector3i origin) {
+        float width = undergroundWidth(origin);
+        int radius = reach(width, UNDERGROUND_LAKE_IRREGULARITY);
+        int height = reach(undergroundDepth(origin, width), UNDERGROUND_LAKE_IRREGULARITY);
+        return (float) (4 * Math.PI / 3 * radius * radius * height);
+    }
+
+    /**
+     * Works out how much of its size an underground lake keeps under the voxel budget. The candidates in each
+     * super-cell of the underground sampler share one budget, handed out in the order the sampler drew them, by the
+     * most each could grow to. That only depends on where the candidates are, never on the terrain or on which region
+     * asked first, so every region agrees on each lake. Candidates the terrain turns down still use their share.
+     * Without super-cells, each candidate has a budget of its own.
+     *
+     * @return the factor to scale the lake's size by
+     */
+    private float budgetScale(int wx0, int wy0, int wz0) {
+        float budget = configuration.undergroundVoxelBudget;
+        if (budget <= 0) {
+            return 1;
+        }
+        if (isLegacySampling()) {
+            return scaleToFit(undergroundVolume(undergroundOrigin(wx0, wy0, wz0)), budget);
+        }
+        List<Vector3i> cells = undergroundSampler.superCellCells(
+            undergroundSampler.superCell(wx0), undergroundSampler.superCell(wy0), undergroundSampler.superCell(wz0));
+        float remaining = budget;
+        for (Vector3i cell : cells) {
+            float volume = undergroundVolume(undergroundOrigin(cell.x, cell.y, cell.z));
+            float scale = scaleToFit(volume, remaining);
+            if (cell.x == wx0 && cell.y == wy0 && cell.z == wz0) {
+                return scale;
+            }
+            remaining -= volume * scale * scale * scale;
+        }
+        return 1;
+    }
+
+    private static float scaleToFit(float volume, float budget) {
+        return volume <= budget ? 1 : (float) Math.cbrt(Math.max(0, budget) / volume);
+    }
+
+    /**
+     * @param scale how much of its size the lake keeps under the voxel budget
+     */
+    private Lake generateUndergroundLake(Workspace workspace, Vector3i origin, DensityFacet densityFacet, float distanceBelowGround, float scale) {
+        float fullWidth = undergroundWidth(origin);
+        float width = fullWidth * scale;
+        float depth = undergroundDepth(origin, fullWidth) * scale;
+        if (width < MIN_UNDERGROUND_WIDTH || depth < MIN_UNDERGROUND_DEPTH) {
+            // Too little of the budget is left for a lake of any size.
+            workspace.reject(LakeMetrics.Rejection.OVER_BUDGET, true);
+            return null;
+        }
+        int radius = reach(width, UNDERGROUND_LAKE_IRREGULARITY);
+        int height = reach(depth, UNDERGROUND_LAKE_IRREGULARITY);
+        BlockRegionc available = densityFacet.getWorldRegion();
+        prepare(workspace, origin.x - radius, origin.y - height, origin.z - radius, origin.x + radius, origin.y + height, origin.z + radius);
+        LakeFill.Lakeness lakeness = (x, y, z) -> {
+            float value = 1 + UNDERGROUND_LAKE_IRREGULARITY * workspace.depthNoise.get(x, y, z)
+                - square((x - origin.x) / width)
+                - square((y - origin.y) / depth)
+                - square((z - origin.z) / width);
+            if (value <= 0) {
+                return LakeFill.Lakeness.OUTSIDE;
+            }
+            if (!available.contains(x, y, z) || densityFacet.getWorld(x, y, z) <= 0) {
+                // The lake breaches the surface. Abort.
+                return LakeFill.Lakeness.ABORT;
+            }
+            return LakeFill.Lakeness.INSIDE;
+        };
+
+        // Blocks in a straight line from the origin are connected to it, so if any of them breaches the surface
+        // the whole lake would. Checking the six axes first throws most doomed lakes away before the fill.
+        // Upwards goes first, since that's the way lakes usually breach.
+        if (lakeness.classify(origin.x, origin.y, origin.z) == LakeFill.Lakeness.INSIDE) {
+            if (probe(origin, 0, 1, 0, height, lakeness) || probe(origin, 1, 0, 0, radius, lakeness)
+                || probe(origin, -1, 0, 0, radius, lakeness) || probe(origin, 0, 0, 1, radius, lakeness)
+                || probe(origin, 0, 0, -1, radius, lakeness) || probe(origin, 0, -1, 0, height, lakeness)) {
+                workspace.reject(LakeMetrics.Rejection.BREACH, true);
+                return null;
+            }
+        }
+
+        if (!workspace.fill.fill(origin.x, origin.y, origin.z, true, lakeness)) {
+            workspace.reject(LakeMetrics.Rejection.BREACH, false);
+            return null;
+        }
+        VoxelSet content = workspace.fill.toVoxelSet();
+        BlockRegion extent = content.isEmpty() ? new BlockRegion(origin) : content.getBounds();
+        return new Lake(origin.y, content, distanceBelowGround > 100 ? lava : water, extent, LakeCarving.NONE, scale);
+    }
+
+    private Lake generateSurfaceLake(Workspace workspace, Vector3i origin, SurfacesFacet surfaces, SurfaceColumns surfaceColumns,
+                                     DensityFacet density, int seaLevel) {
         if (origin.y < seaLevel) {
-            return;
+            workspace.reject(LakeMetrics.Rejection.UNDERWATER, true);
+            return null;
         }
         float width = Math.abs(noise.noise(origin.x, origin.y, origin.z + 4)) * (Lake.MAX_RADIUS - Lake.MIN_RADIUS) + Lake.MIN_RADIUS;
         float depth = Math.abs(noise.noise(origin.x, origin.y, origin.z + 5)) * (width / 2 - Lake.MIN_DEPTH) + Lake.MIN_DEPTH;
 
         // Generate the lake's 2D shape
-        Set<Vector3i> surface = new HashSet<>();
-        Set<Vector3i> shore = new HashSet<>();
-        Queue<Vector3i> frontier = new ArrayDeque<>();
-        frontier.add(origin);
-        while (!frontier.isEmpty()) {
-            Vector3i pos = frontier.remove();
-            if (surface.contains(pos)) {
-                continue;
-            }
-            if (!surfaces.getWorldRegion().contains(pos)) {
+        int radius = reach(width, SURFACE_LAKE_IRREGULARITY);
+        BlockRegionc available = surfaces.getWorldRegion();
+        prepare(workspace, origin.x - radius, origin.y, origin.z - radius, origin.x + radius, origin.y, origin.z + radius);
+        // Each column the fill reaches is read from top to bottom.
+        BlockRegionc carvable = density.getWorldRegion();
+        workspace.reads = new BlockRegion(origin.x - radius, Math.min(available.minY(), carvable.minY()), origin.z - radius)
+            .union(origin.x + radius, Math.max(available.maxY(), carvable.maxY()), origin.z + radius);
+        LakeFill.Lakeness lakeness = (x, y, z) -> {
+            if (!available.contains(x, y, z)) {
                 // Information important to the lake's construction is missing. Abort.
-                return;
-            }
-            if (localDepth(origin, pos, depth, width) <= 0) {
-                shore.add(pos);
-            } else {
-                surface.add(pos);
-                frontier.add(new Vector3i(0,0,1).add(pos));
-                frontier.add(new Vector3i(0,0,-1).add(pos));
-                frontier.add(new Vector3i(1,0,0).add(pos));
-                frontier.add(new Vector3i(-1,0,0).add(pos));
+                return LakeFill.Lakeness.ABORT;
             }
+            return localDepth(workspace, origin, x, y, z, depth, width) <= 0 ? LakeFill.Lakeness.OUTSIDE : LakeFill.Lakeness.INSIDE;
+        };
+
+        LakeMetrics.Rejection early = probeSurfaceLake(origin, radius, seaLevel, surfaceColumns, lakeness);
+        if (early != null) {
+            workspace.reject(early, true);
+            return null;
         }
 
-        if (surface.isEmpty()) {
-            // This lake contains no blocks.
-            return;
+        if (!workspace.fill.fill(origin.x, origin.y, origin.z, false, lakeness)) {
+            workspace.reject(LakeMetrics.Rejection.MISSING_INFORMATION, false);
+            return null;
         }
 
+        // Everything read from here on is recorded, so that the lake can be reused by other regions which contain it.
+        BlockRegion extent = new BlockRegion(origin.x, origin.y - 2, origin.z).union(origin.x, origin.y + 4, origin.z);
+        boolean regionIndependent = true;
+
         // Check that there are surfaces nearby (prevents lakes from overlapping with each other, or with caves).
-        for (Vector3i pos : surface) {
-            boolean hasSurface = false;
-            for (int surfaceHeight : surfaces.getWorldColumn(pos.x, pos.z)) {
-                if (surfaceHeight >= origin.y - 2 && surfaceHeight <= origin.y + 4) {
-                    hasSurface = true;
-                    break;
-                }
-            }
-            if (!hasSurface) {
+        for (int i = workspace.fill.nextInside(0); i >= 0; i = workspace.fill.nextInside(i + 1)) {
+            int x = workspace.fill.x(i);
+            int z = workspace.fill.z(i);
+            extent.union(x, origin.y, z);
+            if (nearbySurface(surfaceColumns, x, z, origin.y) == NO_SURFACE) {
                 // There is no surface within range. Abort.
-                return;
+                workspace.reject(LakeMetrics.Rejection.NO_SURFACE, false);
+                return null;
             }
         }
 
         // Calculate the height of the shore. The minimum height is used as the height of the lake surface.
         int minHeight = Integer.MAX_VALUE;
         int maxHeight = Integer.MIN_VALUE;
-        for (Vector3i pos : shore) {
-            boolean hasSurface = false;
-            for (int surfaceHeight : surfaces.getWorldColumn(pos.x, pos.z)) {
-                if (surfaceHeight >= origin.y - 2 && surfaceHeight <= origin.y + 4) {
-                    hasSurface = true;
-                    minHeight = Math.min(minHeight, surfaceHeight);
-                    maxHeight = Math.max(maxHeight, surfaceHeight);
-                    break;
-                }
-            }
-            if (!hasSurface) {
+        for (int i = workspace.fill.nextOutside(0); i >= 0; i = workspace.fill.nextOutside(i + 1)) {
+            int x = workspace.fill.x(i);
+            int z = workspace.fill.z(i);
+            extent.union(x, origin.y, z);
+            int surfaceHeight = nearbySurface(surfaceColumns, x, z, origin.y);
+            if (surfaceHeight == NO_SURFACE) {
                 // There is no surface within range. Abort.
-                return;
+                workspace.reject(LakeMetrics.Rejection.NO_SURFACE, false);
+                return null;
             }
+            minHeight = Math.min(minHeight, surfaceHeight);
+            maxHeight = Math.max(maxHeight, surfaceHeight);
         }
 
         if (maxHeight - minHeight > 2 || minHeight <= seaLevel) {
             // This area is too sloped or already underwater. Abort.
-            return;
+            workspace.reject(maxHeight - minHeight > 2 ? LakeMetrics.Rejection.TOO_SLOPED : LakeMetrics.Rejection.UNDERWATER, false);
+            return null;
         }
 
-        // Carve out space for the lake, and calculate the set of all the blocks it contains.
-        Set<Vector3i> content = new HashSet<>();
-        for (Vector3i pos : surface) {
-            pos.y = minHeight - localDepth(origin, pos, depth, width); // The lake floor
-            if (!density.getWorldRegion().contains(pos) || !density.getWorldRegion().contains(pos.x, minHeight, pos.z)) {
-                return;
+        // Work out the space to carve out for the lake, and calculate the set of all the blocks it contains.
+        // Each column is only read and written once, so the terrain is left alone until the whole lake is known.
+        VoxelSet.Builder content = new VoxelSet.Builder(origin.x, minHeight, origin.z);
+        LakeCarving.Builder carving = new LakeCarving.Builder();
+        Vector3i floor = new Vector3i();
+        for (int i = workspace.fill.nextInside(0); i >= 0; i = workspace.fill.nextInside(i + 1)) {
+            int x = workspace.fill.x(i);
+            int z = workspace.fill.z(i);
+            floor.set(x, minHeight - localDepth(workspace, origin, x, origin.y, z, depth, width), z); // The lake floor
+            if (!density.getWorldRegion().contains(floor) || !density.getWorldRegion().contains(x, minHeight, z)) {
+                workspace.reject(LakeMetrics.Rejection.MISSING_INFORMATION, false);
+                return null;
             }
-            if (density.getWorld(pos) > 0) {
-                int surfaceHeight = surfaces.getNextAbove(pos);
-                while (pos.y < surfaceHeight) {
-                    pos.add(0,1,0);
-                    density.setWorld(pos, 0);
-                    if (pos.y <= minHeight) {
-                        content.add(new Vector3i(pos));
-                    }
+            extent.union(floor).union(x, minHeight, z);
+            if (density.getWorld(floor) > 0) {
+                int surfaceHeight = surfaces.getNextAbove(floor);
+                regionIndependent &= isSurface(surfaces, x, surfaceHeight, z);
+                if (surfaceHeight > floor.y) {
+                    extent.union(x, surfaceHeight, z);
+                    carving.clearColumn(x, z, floor.y + 1, surfaceHeight);
+                }
+                for (int y = floor.y + 1; y <= Math.min(surfaceHeight, minHeight); y++) {
+                    content.add(x, y, z);
                 }
-                surfaces.setWorld(pos, false);
+                carving.clearSurface(x, Math.max(floor.y, surfaceHeight), z);
             } else {
-                int surfaceHeight = surfaces.getNextBelow(pos);
-                pos.set(0,surfaceHeight + 1,0);
-                while (pos.y < minHeight) {
-                    content.add(new Vector3i(pos));
-                    pos.add(0,1,0);
+                int surfaceHeight = surfaces.getNextBelow(floor);
+                regionIndependent &= isSurface(surfaces, x, surfaceHeight, z);
+                extent.union(x, surfaceHeight, z);
+                for (int y = surfaceHeight + 1; y < minHeight; y++) {
+                    content.add(x, y, z);
                 }
-                surfaces.setWorld(pos.x, surfaceHeight, pos.z, false);
+                carving.clearSurface(x, surfaceHeight, z);
             }
         }
 
-        for (Vector3i pos : shore) {
-            int surfaceHeight = surfaces.getNextAbove(new org.joml.Vector3i(pos.x, minHeight, pos.z));
+        Vector3i shorePos = new Vector3i();
+        for (int i = workspace.fill.nextOutside(0); i >= 0; i = workspace.fill.nextOutside(i + 1)) {
+            int x = workspace.fill.x(i);
+            int z = workspace.fill.z(i);
+            int surfaceHeight = surfaces.getNextAbove(shorePos.set(x, minHeight, z));
+            regionIndependent &= isSurface(surfaces, x, surfaceHeight, z);
             if (surfaceHeight > minHeight) {
-                density.setWorld(pos.x, surfaceHeight, pos.z, 0);
-                surfaces.setWorld(pos.x, surfaceHeight, pos.z, false);
-                surfaces.setWorld(pos.x, surfaceHeight - 1, pos.z, true);
+                extent.union(x, surfaceHeight, z);
+                carving.clearColumn(x, z, surfaceHeight, surfaceHeight);
+                carving.clearSurface(x, surfaceHeight, z);
+                carving.addSurface(x, surfaceHeight - 1, z);
             }
         }
 
-        facet.add(new Lake(minHeight, content, water));
+        return new Lake(minHeight, content.build(), water, regionIndependent ? extent : null, carving.build(), 1);
+    }
+
+    /**
+     * Walks from the origin along one axis for as long as the lake continues.
+     * Everything on the way is part of the lake (if the lake is placed at all), since it's connected to the origin.
+     *
+     * @return whether the walk found a block that would abort the lake
+     */
+    private boolean probe(Vector3i origin, int dx, int dy, int dz, int limit, LakeFill.Lakeness lakeness) {
+        for (int step = 1; step <= limit; step++) {
+            int result = lakeness.classify(origin.x + dx * step, origin.y + dy * step, origin.z + dz * step);
+            if (result != LakeFill.Lakeness.INSIDE) {
+                return result == LakeFill.Lakeness.ABORT;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks the parts of a surface lake that can be found without growing it: the origin, and the straight lines
+     * from it along the x and z axes out to the shore. Each of these blocks would be checked in the same way once the
+     * lake is grown, so any problem found here would reject the lake anyway.
+     *
+     * @return why the lake can't be placed, or null if nothing is wrong so far
+     */
+    private LakeMetrics.Rejection probeSurfaceLake(Vector3i origin, int radius, int seaLevel, SurfaceColumns surfaceColumns,
+                                                   LakeFill.Lakeness lakeness) {
+        int start = lakeness.classify(origin.x, origin.y, origin.z);
+        if (start == LakeFill.Lakeness.ABORT) {
+            return LakeMetrics.Rejection.MISSING_INFORMATION;
+        }
+        if (start == LakeFill.Lakeness.OUTSIDE) {
+            return LakeMetrics.Rejection.EMPTY;
+        }
+        int minShore = Integer.MAX_VALUE;
+        int maxShore = Integer.MIN_VALUE;
+        for (int direction = 0; direction < 4; direction++) {
+            int dx = direction == 0 ? 1 : direction == 1 ? -1 : 0;
+            int dz = direction == 2 ? 1 : direction == 3 ? -1 : 0;
+            for (int step = 1; step <= radius; step++) {
+                int x = origin.x + dx * step;
+                int z = origin.z + dz * step;
+                int result = lakeness.classify(x, origin.y, z);
+                if (result == LakeFill.Lakeness.ABORT) {
+                    return LakeMetrics.Rejection.MISSING_INFORMATION;
+                }
+                int surfaceHeight = nearbySurface(surfaceColumns, x, z, origin.y);
+                if (surfaceHeight == NO_SURFACE) {
+                    return LakeMetrics.Rejection.NO_SURFACE;
+                }
+                if (result == LakeFill.Lakeness.OUTSIDE) {
+                    // The first block past the edge is part of the shore.
+                    minShore = Math.min(minShore, surfaceHeight);
+                    maxShore = Math.max(maxShore, surfaceHeight);
+                    break;
+                }
+            }
+        }
+        if (minShore <= maxShore) {
+            // The whole shore can only be more sloped, and only reach lower, than this part of it.
+            if (maxShore - minShore > 2) {
+                return LakeMetrics.Rejection.TOO_SLOPED;
+            }
+            if (minShore <= seaLevel) {
+                return LakeMetrics.Rejection.UNDERWATER;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the first height in the column within the range a surface lake at the given height accepts,
+     * in the order the surfaces facet lists them, or {@link #NO_SURFACE} if there isn't one
+     */
+    private int nearbySurface(SurfaceColumns surfaceColumns, int x, int z, int lakeHeight) {
+        for (int surfaceHeight : surfaceColumns.get(x, z)) {
+            if (surfaceHeight >= lakeHeight - 2 && surfaceHeight <= lakeHeight + 4) {
+                return surfaceHeight;
+            }
+        }
+        return NO_SURFACE;
+    }
+
+    /**
+     * Gets the fill and noise tile ready for growing a lake within the given box, which is all the lake reads.
+     */
+    private void prepare(Workspace workspace, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        workspace.fill.reset(minX, minY, minZ, maxX, maxY, maxZ);
+        workspace.depthNoise.reset(minX, minY, minZ, maxX, maxY, maxZ);
+        workspace.reads = new BlockRegion(minX, minY, minZ).union(maxX, maxY, maxZ);
+    }
+
+    private boolean isSurface(SurfacesFacet surfaces, int x, int y, int z) {
+        return surfaces.getWorldRegion().contains(x, y, z) && surfaces.getWorld(x, y, z);
     }
 
     private float square(float x) {
         return x * x;
     }
 
-    private int localDepth(Vector3i origin, Vector3i pos, float depth, float width) {
-        return (int) (depth * (SURFACE_LAKE_IRREGULARITY * depthModifyingNoise.noise(pos.x, pos.y, pos.z) + 1 - square((pos.x - origin.x) / width) - square((pos.z - origin.z) / width)));
+    private int localDepth(Workspace workspace, Vector3i origin, int x, int y, int z, float depth, float width) {
+        return (int) (depth * (SURFACE_LAKE_IRREGULARITY * workspace.depthNoise.get(x, y, z) + 1 - square((x - origin.x) / width) - square((z - origin.z) / width)));
+    }
+
+    /**
+     * The furthest a lake can reach from its origin along an axis with the given scale: beyond this,
+     * the paraboloid outweighs anything the noise can add. One block of margin is left for the lake's neighbours.
+     * For the widest lakes, this is {@link Lake#MAX_EXTENT}.
+     */
+    private static int reach(float scale, float irregularity) {
+        return (int) Math.ceil(scale * Math.sqrt(1 + irregularity * NOISE_AMPLITUDE)) + 1;
+    }
+
+    /**
+     * What one thread needs to grow a lake. Growing only reads the facets, so lakes can grow on several threads at once
+     * as long as each has its own workspace.
+     */
+    private static final class Workspace {
+        final LakeFill fill = new LakeFill();
+        final NoiseTile depthNoise;
+        /** Everything the facets were read at while growing the last lake, or null if they weren't read. */
+        BlockRegion reads;
+        LakeMetrics.Rejection rejection;
+        boolean early;
+        /** The time this thread has spent on phases which are timed on their own, while timing is on. */
+        long timedNanos;
+
+        Workspace(Noise depthModifyingNoise) {
+            this.depthNoise = new NoiseTile(depthModifyingNoise);
+        }
+
+        void stop(LakeMetrics.Phase phase, long start) {
+            if (start != 0) {
+                long nanos = System.nanoTime() - start;
+                timedNanos += nanos;
+                LakeMetrics.record(phase, nanos);
+            }
+        }
+
+        void begin() {
+            reads = null;
+            rejection = null;
+            early = false;
+        }
+
+        void reject(LakeMetrics.Rejection reason, boolean isEarly) {
+            rejection = reason;
+            early = isEarly;
+        }
+    }
+
+    /**
+     * The facets of the region being processed, and the lakes committed to it so far.
+     */
+    private static final class RegionContext {
+        final LakeFacet lakes;
+        final SurfacesFacet surfaces;
+        final DensityFacet density;
+        /** The surfaces facet's columns, kept up to date as lakes are carved. */
+        final SurfaceColumns surfaceColumns;
+        final ElevationFacet elevation;
+        final int seaLevel;
+        final int startY;
+        final Map<Long, List<Vector3i>> undergroundCells;
+        /** Where committed lakes are published, if anywhere. */
+        final LakeIndex index;
+        /** The bounds of each carving applied so far. */
+        final List<BlockRegionc> carved = new ArrayList<>();
+
+        RegionContext(LakeFacet lakes, SurfacesFacet surfaces, DensityFacet density, ElevationFacet elevation, int seaLevel,
+                      int startY, Map<Long, List<Vector3i>> undergroundCells, LakeIndex index) {
+            this.lakes = lakes;
+            this.surfaces = surfaces;
+            this.density = density;
+            this.surfaceColumns = new SurfaceColumns(surfaces);
+            this.elevation = elevation;
+            this.seaLevel = seaLevel;
+            this.startY = startY;
+            this.undergroundCells = undergroundCells;
+            this.index = index;
+        }
+    }
+
+    /**
+     * The lakes grown in one column of cells before anything in the region was carved, waiting to be committed.
+     */
+    private static final class ColumnResult {
+        /** Everything growing the column read, in the order it was read. */
+        final List<BlockRegionc> reads = new ArrayList<>();
+        final List<Attempt> attempts = new ArrayList<>();
+    }
+
+    /**
+     * One grown candidate: either a lake, or the reason there isn't one.
+     */
+    private static final class Attempt {
+        final Vector3i origin;
+        final boolean underground;
+        final Lake lake;
+        /** Whether the lake came from the cache, rather than being grown. */
+        final boolean cached;
+        final LakeMetrics.Rejection rejection;
+        final boolean early;
+        /** How many of the column's reads had been made once this lake was grown; carving it could change any read after. */
+        int readsBefore;
+
+        Attempt(Vector3i origin, boolean underground, Lake lake, boolean cached, LakeMetrics.Rejection rejection, boolean early) {
+            this.origin = origin;
+            this.underground = underground;
+            this.lake = lake;
+            this.cached = cached;
+            this.rejection = rejection;
+            this.early = early;
+        }
+    }
+
+    public static class Configuration implements Component<Configuration> {
+        /**
+         * Worlds created before underground lakes were sampled per super-cell test every cell instead,
+         * which gives a different (but statistically equivalent) layout. Keep this on for those worlds.
+         * It's on unless a stored configuration says otherwise; only new worlds are offered it off.
+         */
+        @Checkbox(description = "Place underground lakes the way older worlds did")
+        public boolean legacyUndergroundSampling = true;
+
+        /**
+         * Grows a region's lakes on several threads, from a pool shared by every region and kept to half the cores.
+         * The lakes are the same either way.
+         */
+        @Checkbox(description = "Grow lakes on several threads")
+        public boolean parallelGrowth = true;
+
+        /**
+         * Keeps every lake grown in the world's save, so that it needn't be grown again after a restart.
+         */
+        @Checkbox(description = "Keep a catalog of lakes in the save")
+        public boolean persistentCatalog = false;
+
+        /**
+         * Guesses which regions will be generated next and prepares them in the background. The lakes are the same either way.
+         */
+        @Checkbox(description = "Prepare lakes ahead of where the world is being generated")
+        public boolean backgroundPlanning = false;
+
+        /**
+         * The most blocks of underground lake in each 48-block cube, or 0 for no limit. Lakes which don't fit are
+         * shrunk, or left out once the budget is spent, the same way whichever region is generated first.
+         * Changing it moves underground lakes, so it's best left alone in existing worlds.
+         */
+        @Range(min = 0, max = 50000, increment = 500, precision = 0, description = "Most blocks of underground lake per 48-block cube (0 for no limit)")
+        public float undergroundVoxelBudget = 0;
+
+        /**
+         * Regions whose lakes take longer than this many milliseconds are reported, or none if it's 0.
+         */
+        @Range(min = 0, max = 1000, increment = 5, precision = 0, description = "Report regions whose lakes take longer than this many milliseconds")
+        public float regionTimeBudget = 0;
+
+        /**
+         * @return the configuration a newly created world starts with
+         */
+        static Configuration forNewWorld() {
+            Configuration configuration = new Configuration();
+            configuration.legacyUndergroundSampling = false;
+            return configuration;
+        }
+
+        @Override
+        public void copyFrom(Configuration other) {
+            this.legacyUndergroundSampling = other.legacyUndergroundSampling;
+            this.parallelGrowth = other.parallelGrowth;
+            this.persistentCatalog = other.persistentCatalog;
+            this.backgroundPlanning = other.backgroundPlanning;
+            this.undergroundVoxelBudget = other.undergroundVoxelBudget;
+            this.regionTimeBudget = other.regionTimeBudget;
+        }
     }
 }
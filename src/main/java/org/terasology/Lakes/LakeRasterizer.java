@@ -15,12 +15,11 @@
  */
 package org.terasology.Lakes;
 
-import org.joml.Vector3i;
 import org.terasology.engine.registry.CoreRegistry;
 import org.terasology.engine.world.block.Block;
 import org.terasology.engine.world.block.BlockManager;
+import org.terasology.engine.world.block.BlockRegionc;
 import org.terasology.engine.world.chunks.Chunk;
-import org.terasology.engine.world.chunks.Chunks;
 import org.terasology.engine.world.generation.Region;
 import org.terasology.engine.world.generation.WorldRasterizerPlugin;
 import org.terasology.engine.world.generator.plugin.RegisterPlugin;
@@ -28,7 +27,7 @@ import org.terasology.engine.world.generator.plugin.RegisterPlugin;
 @RegisterPlugin
 public class LakeRasterizer implements WorldRasterizerPlugin {
 
-    private Block air;
+    Block air;
 
     @Override
     public void initialize() {
@@ -37,15 +36,42 @@ public class LakeRasterizer implements WorldRasterizerPlugin {
 
     @Override
     public void generateChunk(Chunk chunk, Region chunkRegion) {
+        rasterize(chunkRegion, chunk::setBlock);
+    }
+
+    /**
+     * Writes the lakes of a chunk's region, through the given writer rather than straight into a chunk.
+     */
+    void rasterize(Region chunkRegion, BlockWriter chunk) {
+        long started = LakeMetrics.start();
         LakeFacet lakeFacet = chunkRegion.getFacet(LakeFacet.class);
-        Vector3i tempPos = new Vector3i();
-        for (Lake lake : lakeFacet.getLakes()) {
-            for (Vector3i pos : lake) {
-                if (chunkRegion.getRegion().contains(pos)) {
-                    Block block = pos.y > lake.surfaceHeight ? air : lake.liquid;
-                    chunk.setBlock(Chunks.toRelative(pos, tempPos), block);
+        BlockRegionc region = chunkRegion.getRegion();
+        int minX = region.minX();
+        int minY = region.minY();
+        int minZ = region.minZ();
+        for (Lake lake : lakeFacet.getLakes(region)) {
+            Block liquid = lake.liquid;
+            // Runs are already clipped to the chunk, so they're written without bounds checks. Chunk has no way to set
+            // a span of blocks at once, so each span is still written one block at a time.
+            lake.forEachRun(region, (x, z, floor, liquidTop, airTop) -> {
+                int relX = x - minX;
+                int relZ = z - minZ;
+                for (int y = floor; y <= liquidTop; y++) {
+                    chunk.setBlock(relX, y - minY, relZ, liquid);
+                }
+                for (int y = Math.max(floor, liquidTop + 1); y <= airTop; y++) {
+                    chunk.setBlock(relX, y - minY, relZ, air);
                 }
-            }
+            });
         }
+        LakeMetrics.stop(LakeMetrics.Phase.RASTERIZATION, started);
+    }
+
+    /**
+     * Sets blocks in a chunk, given coordinates relative to it.
+     */
+    @FunctionalInterface
+    interface BlockWriter {
+        void setBlock(int x, int y, int z, Block block);
     }
 }
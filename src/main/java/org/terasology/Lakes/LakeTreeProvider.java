@@ -4,11 +4,15 @@
 package org.terasology.Lakes;
 
 import org.joml.Vector3i;
+import org.terasology.biomesAPI.Biome;
 import org.terasology.core.world.CoreBiome;
 import org.terasology.core.world.generator.facets.BiomeFacet;
 import org.terasology.core.world.generator.facets.TreeFacet;
 import org.terasology.core.world.generator.trees.Trees;
 import org.terasology.engine.utilities.procedural.WhiteNoise;
+import org.terasology.engine.world.block.BlockAreac;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
 import org.terasology.engine.world.generation.Facet;
 import org.terasology.engine.world.generation.FacetBorder;
 import org.terasology.engine.world.generation.FacetProviderPlugin;
@@ -19,6 +23,11 @@ import org.terasology.engine.world.generation.facets.SurfacesFacet;
 import org.terasology.engine.world.generator.plugin.RegisterPlugin;
 import org.terasology.paradice.trees.GenericTrees;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 @RegisterPlugin
 @Requires({
         @Facet(value = SurfacesFacet.class, border = @FacetBorder(sides = Trees.MAXRADIUS)),
@@ -28,41 +37,198 @@ import org.terasology.paradice.trees.GenericTrees;
 @Updates(@Facet(TreeFacet.class))
 public class LakeTreeProvider implements FacetProviderPlugin {
     public static final int SCATTER = 4;
+    private static final String DESERT_ID = CoreBiome.DESERT.getId();
+
     private WhiteNoise noise;
+    /**
+     * The spots worked out for each desert lake so far. Lakes are shared between regions, so this saves redoing them
+     * for each one. Entries go once a lake is no longer used by any region.
+     */
+    private Map<Lake, PalmSpots> spots = Collections.synchronizedMap(new WeakHashMap<>());
 
     @Override
     public void process(GeneratingRegion region) {
+        long started = LakeMetrics.start();
         TreeFacet treeFacet = region.getRegionFacet(TreeFacet.class);
 
         SurfacesFacet surfacesFacet = region.getRegionFacet(SurfacesFacet.class);
         LakeFacet lakeFacet = region.getRegionFacet(LakeFacet.class);
         BiomeFacet biomeFacet = region.getRegionFacet(BiomeFacet.class);
 
-        for (Lake lake : lakeFacet.getLakes()) {
-            for (Vector3i lakePos : lake) {
-                if (
-                    !biomeFacet.getWorldArea().contains(lakePos.x, lakePos.z)
-                    || !biomeFacet.getWorld(lakePos.x, lakePos.z).getId().equals(CoreBiome.DESERT.getId())
-                    || noise.noise(lakePos.x, lakePos.y, lakePos.z) < 0.5
-                ) {
+        // Only lake blocks within scattering distance of the tree facet, in columns whose biome is known, can place a tree in it.
+        BlockRegion searchRegion = new BlockRegion(treeFacet.getWorldRegion()).expand(SCATTER, SCATTER, SCATTER);
+        BlockAreac biomeArea = biomeFacet.getWorldArea();
+        int minX = Math.max(searchRegion.minX(), biomeArea.minX());
+        int maxX = Math.min(searchRegion.maxX(), biomeArea.maxX());
+        int minZ = Math.max(searchRegion.minZ(), biomeArea.minY());
+        int maxZ = Math.min(searchRegion.maxZ(), biomeArea.maxY());
+        if (minX > maxX || minZ > maxZ) {
+            LakeMetrics.stop(LakeMetrics.Phase.TREES, started);
+            return;
+        }
+        BlockRegion clip = new BlockRegion(minX, searchRegion.minY(), minZ, maxX, searchRegion.maxY(), maxZ);
+        DesertColumns desert = new DesertColumns(biomeFacet);
+        Vector3i pos = new Vector3i();
+        for (Lake lake : lakeFacet.getLakes(clip)) {
+            // Most lakes aren't in a desert, and working out their spots would cost a noise lookup for every block.
+            if (!touchesDesert(lake, clip, desert)) {
+                continue;
+            }
+            PalmSpots lakeSpots = spotsOf(lake, clip);
+            for (int c = 0; c < lakeSpots.columns.length; c += 4) {
+                int x = lakeSpots.columns[c];
+                int z = lakeSpots.columns[c + 1];
+                if (x < minX || x > maxX || z < minZ || z > maxZ || !desert.contains(x, z)) {
                     continue;
                 }
-                Vector3i pos = new Vector3i(lakePos);
-                pos.add(Math.floorMod(noise.intNoise(lakePos.x, lakePos.y + 1, lakePos.z), SCATTER * 2 + 1) - SCATTER,0,0);
-                pos.add(0,Math.floorMod(noise.intNoise(lakePos.x, lakePos.y + 2, lakePos.z), SCATTER * 2 + 1) - SCATTER,0);
-                pos.add(0,0,Math.floorMod(noise.intNoise(lakePos.x, lakePos.y + 3, lakePos.z), SCATTER * 2 + 1) - SCATTER);
-                if (
-                    surfacesFacet.getWorldRegion().contains(pos.x, pos.y - 1, pos.z)
-                    && surfacesFacet.getWorld(pos.x, pos.y - 1, pos.z)
-                    && treeFacet.getWorldRegion().contains(pos)) {
-                    treeFacet.setWorld(pos, GenericTrees.palmTree());
+                for (int i = lakeSpots.columns[c + 2]; i < lakeSpots.columns[c + 3]; i += 4) {
+                    int y = lakeSpots.spots[i];
+                    if (y < clip.minY() || y > clip.maxY()) {
+                        continue;
+                    }
+                    pos.set(lakeSpots.spots[i + 1], lakeSpots.spots[i + 2], lakeSpots.spots[i + 3]);
+                    if (
+                        surfacesFacet.getWorldRegion().contains(pos.x, pos.y - 1, pos.z)
+                        && surfacesFacet.getWorld(pos.x, pos.y - 1, pos.z)
+                        && treeFacet.getWorldRegion().contains(pos)) {
+                        treeFacet.setWorld(pos, GenericTrees.palmTree());
+                    }
                 }
             }
         }
+        LakeMetrics.stop(LakeMetrics.Phase.TREES, started);
     }
 
     @Override
     public void setSeed(long seed) {
         noise = new WhiteNoise(seed + 43);
+        spots = Collections.synchronizedMap(new WeakHashMap<>());
+    }
+
+    /**
+     * @return whether any column of the lake within the clip is in a desert
+     */
+    private static boolean touchesDesert(Lake lake, BlockRegionc clip, DesertColumns desert) {
+        boolean[] found = {false};
+        lake.forEachRun(clip, (x, z, floor, liquidTop, airTop) -> {
+            if (!found[0] && desert.contains(x, z)) {
+                found[0] = true;
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * @return the spots of the lake; for lakes shared between regions, all of them, worked out once, and otherwise
+     * only the ones within the clip, since no other region will ask for them
+     */
+    private PalmSpots spotsOf(Lake lake, BlockRegionc clip) {
+        if (lake.getExtent() == null) {
+            return findSpots(lake, clip);
+        }
+        PalmSpots lakeSpots = spots.get(lake);
+        if (lakeSpots == null) {
+            // Worked out outside the map's lock, so other regions' trees aren't held up meanwhile. Threads racing for
+            // the same lake work out the same spots, so it doesn't matter whose are kept.
+            lakeSpots = findSpots(lake, null);
+            spots.putIfAbsent(lake, lakeSpots);
+        }
+        return lakeSpots;
+    }
+
+    /**
+     * Works out where each block of the lake would scatter a palm tree to, for the blocks that place one at all.
+     * None of this depends on the region, only on the lake and the seed.
+     *
+     * @param clip the part of the lake to work out, or null for all of it
+     */
+    private PalmSpots findSpots(Lake lake, BlockRegionc clip) {
+        PalmSpots.Builder builder = new PalmSpots.Builder();
+        LakeColumns.RunConsumer addSpots = (x, z, floor, liquidTop, airTop) -> {
+            for (int y = floor; y <= airTop; y++) {
+                if (noise.noise(x, y, z) < 0.5) {
+                    continue;
+                }
+                builder.add(x, y, z,
+                    x + Math.floorMod(noise.intNoise(x, y + 1, z), SCATTER * 2 + 1) - SCATTER,
+                    y + Math.floorMod(noise.intNoise(x, y + 2, z), SCATTER * 2 + 1) - SCATTER,
+                    z + Math.floorMod(noise.intNoise(x, y + 3, z), SCATTER * 2 + 1) - SCATTER);
+            }
+        };
+        if (clip == null) {
+            lake.forEachRun(addSpots);
+        } else {
+            lake.forEachRun(clip, addSpots);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Tells whether columns are in a desert. The biome is the same for the whole column, and is usually the same as
+     * the last column's, so the last answer is kept.
+     */
+    private static final class DesertColumns {
+        private final BiomeFacet biomeFacet;
+        private Biome lastBiome;
+        private boolean lastDesert;
+
+        DesertColumns(BiomeFacet biomeFacet) {
+            this.biomeFacet = biomeFacet;
+        }
+
+        boolean contains(int x, int z) {
+            Biome biome = biomeFacet.getWorld(x, z);
+            if (biome != lastBiome) {
+                lastBiome = biome;
+                lastDesert = biome.getId().equals(DESERT_ID);
+            }
+            return lastDesert;
+        }
+    }
+
+    /**
+     * The blocks of a lake which may place a palm tree, grouped by column in the order the lake visits them.
+     */
+    private static final class PalmSpots {
+        /** (x, z, first spot, end of spots) for each column with at least one spot. */
+        final int[] columns;
+        /** (y, tree x, tree y, tree z) for each spot. */
+        final int[] spots;
+
+        private PalmSpots(int[] columns, int[] spots) {
+            this.columns = columns;
+            this.spots = spots;
+        }
+
+        static final class Builder {
+            private int[] columns = new int[16];
+            private int columnsSize;
+            private int[] spots = new int[64];
+            private int spotsSize;
+
+            void add(int x, int y, int z, int treeX, int treeY, int treeZ) {
+                if (columnsSize == 0 || columns[columnsSize - 4] != x || columns[columnsSize - 3] != z) {
+                    if (columnsSize + 4 > columns.length) {
+                        columns = Arrays.copyOf(columns, columns.length * 2);
+                    }
+                    columns[columnsSize++] = x;
+                    columns[columnsSize++] = z;
+                    columns[columnsSize++] = spotsSize;
+                    columnsSize++;
+                }
+                if (spotsSize + 4 > spots.length) {
+                    spots = Arrays.copyOf(spots, spots.length * 2);
+                }
+                spots[spotsSize++] = y;
+                spots[spotsSize++] = treeX;
+                spots[spotsSize++] = treeY;
+                spots[spotsSize++] = treeZ;
+                columns[columnsSize - 1] = spotsSize;
+            }
+
+            PalmSpots build() {
+                return new PalmSpots(Arrays.copyOf(columns, columnsSize), Arrays.copyOf(spots, spotsSize));
+            }
+        }
     }
 }
@@ -0,0 +1,61 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.terasology.engine.utilities.procedural.Noise;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the values of a noise function over a box, so that each position is only evaluated once
+ * however many times growing and carving a lake ask for it. The array is reused between lakes.
+ */
+final class NoiseTile {
+    private final Noise noise;
+
+    private int minX;
+    private int minY;
+    private int minZ;
+    private int sizeX;
+    private int sizeY;
+    private int sizeZ;
+    private float[] values = new float[0];
+
+    NoiseTile(Noise noise) {
+        this.noise = noise;
+    }
+
+    void reset(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.sizeX = maxX - minX + 1;
+        this.sizeY = maxY - minY + 1;
+        this.sizeZ = maxZ - minZ + 1;
+        int size = sizeX * sizeY * sizeZ;
+        if (values.length < size) {
+            values = new float[size];
+        }
+        Arrays.fill(values, 0, size, Float.NaN);
+    }
+
+    /**
+     * @return the noise at the given position; positions outside the box are evaluated every time
+     */
+    float get(int x, int y, int z) {
+        int rx = x - minX;
+        int ry = y - minY;
+        int rz = z - minZ;
+        if (rx < 0 || ry < 0 || rz < 0 || rx >= sizeX || ry >= sizeY || rz >= sizeZ) {
+            return noise.noise(x, y, z);
+        }
+        int index = ry + sizeY * (rx + sizeX * rz);
+        float value = values[index];
+        if (Float.isNaN(value)) {
+            value = noise.noise(x, y, z);
+            values[index] = value;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,85 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.terasology.engine.world.block.BlockRegionc;
+import org.terasology.engine.world.generation.facets.SurfacesFacet;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The surface heights of each column of a region's surfaces facet, read from the facet the first time the column is
+ * needed and kept as plain ints. Growing a surface lake looks at the same columns many times over, and each time
+ * through the facet builds a boxed iterable of the column.
+ *
+ * Any number of threads can read columns at once. Columns must be forgotten with {@link #invalidate} whenever the
+ * facet is changed, which mustn't happen while other threads are reading.
+ */
+final class SurfaceColumns {
+    private static final int[] NO_SURFACES = new int[0];
+
+    private final SurfacesFacet surfaces;
+    private final int minX;
+    private final int minZ;
+    private final int sizeX;
+    private final int sizeZ;
+    private final AtomicReferenceArray<int[]> columns;
+
+    SurfaceColumns(SurfacesFacet surfaces) {
+        this.surfaces = surfaces;
+        BlockRegionc region = surfaces.getWorldRegion();
+        this.minX = region.minX();
+        this.minZ = region.minZ();
+        this.sizeX = region.getSizeX();
+        this.sizeZ = region.getSizeZ();
+        this.columns = new AtomicReferenceArray<>(sizeX * sizeZ);
+    }
+
+    /**
+     * @return the heights of the surfaces in the column, in the order the facet lists them; not to be modified
+     */
+    int[] get(int x, int z) {
+        int dx = x - minX;
+        int dz = z - minZ;
+        if (dx < 0 || dx >= sizeX || dz < 0 || dz >= sizeZ) {
+            return read(x, z);
+        }
+        int index = dx + sizeX * dz;
+        int[] column = columns.get(index);
+        if (column == null) {
+            // Threads racing to read a column get equal arrays, so it doesn't matter whose is kept.
+            column = read(x, z);
+            columns.set(index, column);
+        }
+        return column;
+    }
+
+    /**
+     * Forgets the columns within the given bounds, after the facet has been changed there.
+     */
+    void invalidate(BlockRegionc bounds) {
+        int fromX = Math.max(bounds.minX(), minX);
+        int toX = Math.min(bounds.maxX(), minX + sizeX - 1);
+        int fromZ = Math.max(bounds.minZ(), minZ);
+        int toZ = Math.min(bounds.maxZ(), minZ + sizeZ - 1);
+        for (int z = fromZ; z <= toZ; z++) {
+            for (int x = fromX; x <= toX; x++) {
+                columns.set((x - minX) + sizeX * (z - minZ), null);
+            }
+        }
+    }
+
+    private int[] read(int x, int z) {
+        int[] heights = NO_SURFACES;
+        int count = 0;
+        for (int height : surfaces.getWorldColumn(x, z)) {
+            if (count == heights.length) {
+                heights = Arrays.copyOf(heights, Math.max(4, count * 2));
+            }
+            heights[count++] = height;
+        }
+        return count == heights.length ? heights : Arrays.copyOf(heights, count);
+    }
+}
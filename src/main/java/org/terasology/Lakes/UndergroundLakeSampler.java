@@ -0,0 +1,123 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.joml.Vector3i;
+import org.terasology.engine.utilities.procedural.WhiteNoise;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Picks the cells which contain underground lake candidates, without looking at every cell.
+ * The world is split into super-cells of {@link #CELLS_PER_SUPER_CELL}^3 cells. Each super-cell draws its number
+ * of candidates from a Poisson distribution with the same mean as testing every cell separately,
+ * and then picks that many distinct cells, so the cost scales with the number of lakes rather than the volume searched.
+ */
+final class UndergroundLakeSampler {
+    static final int CELLS_PER_SUPER_CELL = 16;
+    private static final int CELLS = CELLS_PER_SUPER_CELL * CELLS_PER_SUPER_CELL * CELLS_PER_SUPER_CELL;
+
+    private final WhiteNoise countNoise;
+    private final WhiteNoise placementNoise;
+    private final int cellSize;
+    private final float mean;
+
+    /**
+     * @param cellProbability the chance of each individual cell containing a candidate
+     */
+    UndergroundLakeSampler(long seed, int cellSize, float cellProbability) {
+        this.countNoise = new WhiteNoise(seed * 3884);
+        this.placementNoise = new WhiteNoise(seed * 3885);
+        this.cellSize = cellSize;
+        this.mean = CELLS * cellProbability;
+    }
+
+    /**
+     * @return the minimum corners of the candidate cells whose corners lie within the given bounds,
+     * ordered by x, then z, then y
+     */
+    List<Vector3i> sampleCells(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        int minCellX = Math.floorDiv(minX, cellSize);
+        int minCellY = Math.floorDiv(minY, cellSize);
+        int minCellZ = Math.floorDiv(minZ, cellSize);
+        int maxCellX = Math.floorDiv(maxX, cellSize);
+        int maxCellY = Math.floorDiv(maxY, cellSize);
+        int maxCellZ = Math.floorDiv(maxZ, cellSize);
+
+        List<Vector3i> cells = new ArrayList<>();
+        for (int sx = Math.floorDiv(minCellX, CELLS_PER_SUPER_CELL); sx <= Math.floorDiv(maxCellX, CELLS_PER_SUPER_CELL); sx++) {
+            for (int sy = Math.floorDiv(minCellY, CELLS_PER_SUPER_CELL); sy <= Math.floorDiv(maxCellY, CELLS_PER_SUPER_CELL); sy++) {
+                for (int sz = Math.floorDiv(minCellZ, CELLS_PER_SUPER_CELL); sz <= Math.floorDiv(maxCellZ, CELLS_PER_SUPER_CELL); sz++) {
+                    for (Vector3i cell : superCellCells(sx, sy, sz)) {
+                        int cx = cell.x / cellSize;
+                        int cy = cell.y / cellSize;
+                        int cz = cell.z / cellSize;
+                        if (cx >= minCellX && cx <= maxCellX && cy >= minCellY && cy <= maxCellY && cz >= minCellZ && cz <= maxCellZ) {
+                            cells.add(cell);
+                        }
+                    }
+                }
+            }
+        }
+        cells.sort(Comparator.<Vector3i>comparingInt(cell -> cell.x).thenComparingInt(cell -> cell.z).thenComparingInt(cell -> cell.y));
+        return cells;
+    }
+
+    /**
+     * @return the super-cell containing the given cell corner along one axis
+     */
+    int superCell(int coordinate) {
+        return Math.floorDiv(Math.floorDiv(coordinate, cellSize), CELLS_PER_SUPER_CELL);
+    }
+
+    /**
+     * @return the minimum corners of all the candidate cells in the given super-cell, in the order they were drawn
+     */
+    List<Vector3i> superCellCells(int sx, int sy, int sz) {
+        float u = (countNoise.noise(sx, sy, sz) + 1) / 2;
+        // Capping the count keeps each draw's noise coordinates unique to this super-cell.
+        int count = Math.min(poisson(mean, u), CELLS_PER_SUPER_CELL);
+        List<Vector3i> cells = new ArrayList<>(count);
+        int[] picked = new int[count];
+        int pickedCount = 0;
+        for (int i = 0; i < count; i++) {
+            int cell = Math.floorMod(placementNoise.intNoise(sx * CELLS_PER_SUPER_CELL + i, sy, sz), CELLS);
+            if (contains(picked, pickedCount, cell)) {
+                continue;
+            }
+            picked[pickedCount++] = cell;
+            int cx = sx * CELLS_PER_SUPER_CELL + cell % CELLS_PER_SUPER_CELL;
+            int cy = sy * CELLS_PER_SUPER_CELL + (cell / CELLS_PER_SUPER_CELL) % CELLS_PER_SUPER_CELL;
+            int cz = sz * CELLS_PER_SUPER_CELL + cell / (CELLS_PER_SUPER_CELL * CELLS_PER_SUPER_CELL);
+            cells.add(new Vector3i(cx * cellSize, cy * cellSize, cz * cellSize));
+        }
+        return cells;
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Inverts the Poisson cumulative distribution function.
+     */
+    private static int poisson(float mean, float u) {
+        double probability = Math.exp(-mean);
+        double cumulative = probability;
+        int k = 0;
+        while (u > cumulative && probability > 0) {
+            k++;
+            probability *= mean / k;
+            cumulative += probability;
+        }
+        return k;
+    }
+}
@@ -0,0 +1,315 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.joml.Vector3i;
+import org.terasology.engine.world.block.BlockRegion;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of block positions, stored as a bitset over its bounding box.
+ * Bits are ordered column by column, so that each vertical column of the set is contiguous.
+ */
+public final class VoxelSet {
+    /**
+     * Receives the positions of a voxel set without boxing them.
+     */
+    @FunctionalInterface
+    public interface VoxelConsumer {
+        void accept(int x, int y, int z);
+    }
+
+    /**
+     * Receives the vertical runs of a voxel set: each run covers the positions from bottom to top inclusive.
+     */
+    @FunctionalInterface
+    public interface RunConsumer {
+        void accept(int x, int z, int bottom, int top);
+    }
+
+    private final int minX;
+    private final int minY;
+    private final int minZ;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final long[] bits;
+    private final int size;
+
+    private VoxelSet(int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ, long[] bits, int size) {
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.bits = bits;
+        this.size = size;
+    }
+
+    /**
+     * Packs the given bits, laid out over the given box in the same order as a voxel set, into a set with tight bounds.
+     */
+    static VoxelSet ofBits(int boxMinX, int boxMinY, int boxMinZ, int boxSizeX, int boxSizeY, int boxSizeZ, long[] boxBits) {
+        VoxelSet loose = new VoxelSet(boxMinX, boxMinY, boxMinZ, boxSizeX, boxSizeY, boxSizeZ, boxBits, 0);
+        int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, 0};
+        loose.forEach((x, y, z) -> {
+            bounds[0] = Math.min(bounds[0], x);
+            bounds[1] = Math.min(bounds[1], y);
+            bounds[2] = Math.min(bounds[2], z);
+            bounds[3] = Math.max(bounds[3], x);
+            bounds[4] = Math.max(bounds[4], y);
+            bounds[5] = Math.max(bounds[5], z);
+            bounds[6]++;
+        });
+        if (bounds[6] == 0) {
+            return new VoxelSet(0, 0, 0, 0, 0, 0, new long[0], 0);
+        }
+        int sizeX = bounds[3] - bounds[0] + 1;
+        int sizeY = bounds[4] - bounds[1] + 1;
+        int sizeZ = bounds[5] - bounds[2] + 1;
+        long[] bits = new long[(sizeX * sizeY * sizeZ + 63) >>> 6];
+        loose.forEach((x, y, z) -> {
+            int index = (y - bounds[1]) + sizeY * ((x - bounds[0]) + sizeX * (z - bounds[2]));
+            bits[index >>> 6] |= 1L << index;
+        });
+        return new VoxelSet(bounds[0], bounds[1], bounds[2], sizeX, sizeY, sizeZ, bits, bounds[6]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the bounding box of the set, or null if it is empty
+     */
+    public BlockRegion getBounds() {
+        if (size == 0) {
+            return null;
+        }
+        return new BlockRegion(minX, minY, minZ, minX + sizeX - 1, minY + sizeY - 1, minZ + sizeZ - 1);
+    }
+
+    public boolean contains(int x, int y, int z) {
+        int rx = x - minX;
+        int ry = y - minY;
+        int rz = z - minZ;
+        if (rx < 0 || ry < 0 || rz < 0 || rx >= sizeX || ry >= sizeY || rz >= sizeZ) {
+            return false;
+        }
+        int index = ry + sizeY * (rx + sizeX * rz);
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Calls the consumer once for each position in the set, without allocating.
+     */
+    public void forEach(VoxelConsumer consumer) {
+        for (int word = 0; word < bits.length; word++) {
+            long remaining = bits[word];
+            while (remaining != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+                int column = index / sizeY;
+                consumer.accept(minX + column % sizeX, minY + index % sizeY, minZ + column / sizeX);
+            }
+        }
+    }
+
+    /**
+     * Calls the consumer once for each maximal vertical run of positions, column by column from the bottom up.
+     */
+    public void forEachRun(RunConsumer consumer) {
+        int runStart = -1;
+        int runEnd = -1;
+        for (int word = 0; word < bits.length; word++) {
+            long remaining = bits[word];
+            while (remaining != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+                if (runStart >= 0 && (index != runEnd + 1 || index % sizeY == 0)) {
+                    emitRun(runStart, runEnd, consumer);
+                    runStart = -1;
+                }
+                if (runStart < 0) {
+                    runStart = index;
+                }
+                runEnd = index;
+            }
+        }
+        if (runStart >= 0) {
+            emitRun(runStart, runEnd, consumer);
+        }
+    }
+
+    private void emitRun(int start, int end, RunConsumer consumer) {
+        int column = start / sizeY;
+        consumer.accept(minX + column % sizeX, minZ + column / sizeX, minY + start % sizeY, minY + end % sizeY);
+    }
+
+    /**
+     * @return an iterator over the positions in the set, which creates a new vector for each position
+     */
+    public Iterator<Vector3i> iterator() {
+        return new Iterator<Vector3i>() {
+            private int word;
+            private long remaining = bits.length > 0 ? bits[0] : 0;
+
+            @Override
+            public boolean hasNext() {
+                while (remaining == 0 && word + 1 < bits.length) {
+                    remaining = bits[++word];
+                }
+                return remaining != 0;
+            }
+
+            @Override
+            public Vector3i next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int index = (word << 6) + Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+                int column = index / sizeY;
+                return new Vector3i(minX + column % sizeX, minY + index % sizeY, minZ + column / sizeX);
+            }
+        };
+    }
+
+    /**
+     * Collects positions while a lake is being grown, and packs them into a voxel set once it's finished.
+     * Positions are stored as offsets from an anchor in a primitive hash set, so they must be within a million blocks of it.
+     */
+    public static final class Builder {
+        private static final int OFFSET_BITS = 21;
+        private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        private final int anchorX;
+        private final int anchorY;
+        private final int anchorZ;
+        private long[] keys;
+        private int size;
+
+        private int minX = Integer.MAX_VALUE;
+        private int minY = Integer.MAX_VALUE;
+        private int minZ = Integer.MAX_VALUE;
+        private int maxX = Integer.MIN_VALUE;
+        private int maxY = Integer.MIN_VALUE;
+        private int maxZ = Integer.MIN_VALUE;
+
+        public Builder(int anchorX, int anchorY, int anchorZ) {
+            this.anchorX = anchorX;
+            this.anchorY = anchorY;
+            this.anchorZ = anchorZ;
+            keys = new long[64];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public boolean contains(int x, int y, int z) {
+            long key = key(x, y, z);
+            int mask = keys.length - 1;
+            for (int slot = slot(key, mask); keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return whether the position was not already in the set
+         */
+        public boolean add(int x, int y, int z) {
+            long key = key(x, y, z);
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (keys[slot] != EMPTY) {
+                if (keys[slot] == key) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            size++;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+            if (size * 2 > keys.length) {
+                rehash();
+            }
+            return true;
+        }
+
+        public VoxelSet build() {
+            if (size == 0) {
+                return new VoxelSet(0, 0, 0, 0, 0, 0, new long[0], 0);
+            }
+            int sizeX = maxX - minX + 1;
+            int sizeY = maxY - minY + 1;
+            int sizeZ = maxZ - minZ + 1;
+            long[] bits = new long[(sizeX * sizeY * sizeZ + 63) >>> 6];
+            for (long key : keys) {
+                if (key != EMPTY) {
+                    int rx = anchorX + unpack(key >>> (2 * OFFSET_BITS)) - minX;
+                    int ry = anchorY + unpack(key >>> OFFSET_BITS) - minY;
+                    int rz = anchorZ + unpack(key) - minZ;
+                    int index = ry + sizeY * (rx + sizeX * rz);
+                    bits[index >>> 6] |= 1L << index;
+                }
+            }
+            return new VoxelSet(minX, minY, minZ, sizeX, sizeY, sizeZ, bits, size);
+        }
+
+        private long key(int x, int y, int z) {
+            return ((x - anchorX) & OFFSET_MASK) << (2 * OFFSET_BITS)
+                | ((y - anchorY) & OFFSET_MASK) << OFFSET_BITS
+                | ((z - anchorZ) & OFFSET_MASK);
+        }
+
+        private static int unpack(long bits) {
+            // Sign-extend the 21-bit offset
+            return (int) ((bits & OFFSET_MASK) << (64 - OFFSET_BITS) >> (64 - OFFSET_BITS));
+        }
+
+        private static int slot(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32) & mask;
+        }
+
+        private void rehash() {
+            long[] old = keys;
+            keys = new long[old.length * 2];
+            Arrays.fill(keys, EMPTY);
+            int mask = keys.length - 1;
+            for (long key : old) {
+                if (key != EMPTY) {
+                    int slot = slot(key, mask);
+                    while (keys[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = key;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.core.world.generator.facets.TreeFacet;
+import org.terasology.engine.world.block.Block;
+import org.terasology.engine.world.block.BlockRegion;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Times placing lakes, rasterizing them and planting trees around them in made-up flat, hilly and cave-filled terrain,
+ * and reports the throughput and bytes allocated per chunk-sized region next to the lakes per region, so that a change
+ * in throughput can be told apart from a change in how many lakes there are.
+ *
+ * This stands in for a JMH suite, which the module build can't host: modules are built by the engine's Gradle
+ * build, which has no JMH plugin or source set for them. The differences are deliberate adaptations:
+ * <ul>
+ *     <li>Only the operation itself is timed and counted; making up the terrain for it is not.</li>
+ *     <li>Allocations are counted per thread, on the threads that do the work: the calling thread, and the threads of
+ *     {@link LakeProvider#GROWTH_POOL}. Other threads, such as the test runner's, don't add to them.</li>
+ *     <li>Every result is folded into {@link #sink}, so that the work can't be eliminated as dead code.</li>
+ *     <li>There is no fork per benchmark, so they run in one JVM after a warmup; run a single one through the test
+ *     filter to compare numbers across changes.</li>
+ * </ul>
+ *
+ * They take several minutes, so they only run with the environment variable {@code LAKES_BENCHMARKS=true}. Gradle
+ * passes environment variables on to the test JVM, but not {@code -D} system properties.
+ */
+@EnabledIfEnvironmentVariable(named = "LAKES_BENCHMARKS", matches = "true")
+public class LakeBenchmarkTest {
+    private static final Logger logger = LoggerFactory.getLogger(LakeBenchmarkTest.class);
+
+    private static final long[] SEEDS = {1, 42};
+    private static final int REGIONS_PER_SIDE = 3;
+    private static final long WARMUP = TimeUnit.SECONDS.toNanos(3);
+    private static final long MEASUREMENT = TimeUnit.SECONDS.toNanos(5);
+
+    private static final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** Everything the benchmarks produce ends up here, so none of it can be optimized away. */
+    static volatile long sink;
+
+    @Test
+    public void placeLakes() {
+        List<BlockRegion> regions = regions();
+        for (SyntheticTerrain.Profile profile : SyntheticTerrain.Profile.values()) {
+            for (long seed : SEEDS) {
+                SyntheticTerrain terrain = new SyntheticTerrain(profile, seed);
+                for (boolean parallelGrowth : new boolean[]{false, true}) {
+                    // Whether lakes grown for earlier regions may be reused, as they are when neighbouring regions are generated.
+                    for (boolean warmCache : new boolean[]{false, true}) {
+                        LakeProvider shared = LakeDigestTest.newProvider(seed, false, parallelGrowth);
+                        measure(String.format("place %s seed=%d parallelGrowth=%b warmCache=%b", profile, seed, parallelGrowth, warmCache), i -> {
+                            // Placing lakes carves the terrain, so each operation gets it afresh.
+                            SyntheticRegion region = terrain.region(regions.get(i % regions.size()));
+                            LakeProvider provider = warmCache ? shared : LakeDigestTest.newProvider(seed, false, parallelGrowth);
+                            return () -> {
+                                provider.process(region);
+                                return region.getRegionFacet(LakeFacet.class);
+                            };
+                        });
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rasterizeLakes() {
+        LakeRasterizer rasterizer = new LakeRasterizer();
+        rasterizer.air = new Block();
+        CountingWriter writer = new CountingWriter();
+        for (SyntheticTerrain.Profile profile : SyntheticTerrain.Profile.values()) {
+            for (long seed : SEEDS) {
+                List<SyntheticRegion> chunks = new ArrayList<>();
+                for (SyntheticRegion generated : placeLakes(profile, seed)) {
+                    // Only the lakes are kept, rather than all the terrain they were placed in.
+                    SyntheticRegion chunk = new SyntheticRegion(generated.getRegion());
+                    chunk.setRegionFacet(LakeFacet.class, generated.getRegionFacet(LakeFacet.class));
+                    chunks.add(chunk);
+                }
+                writer.blocks = 0;
+                measure(String.format("rasterize %s seed=%d", profile, seed), i -> {
+                    SyntheticRegion chunk = chunks.get(i % chunks.size());
+                    return () -> {
+                        rasterizer.rasterize(chunk, writer);
+                        return chunk.getRegionFacet(LakeFacet.class);
+                    };
+                });
+                logger.info("  {} blocks written", writer.blocks);
+            }
+        }
+    }
+
+    @Test
+    public void plantTrees() {
+        for (SyntheticTerrain.Profile profile : SyntheticTerrain.Profile.values()) {
+            for (long seed : SEEDS) {
+                List<SyntheticRegion> regions = placeLakes(profile, seed);
+                LakeTreeProvider treeProvider = new LakeTreeProvider();
+                treeProvider.setSeed(seed);
+                // Planting a tree again just replaces it, so the same regions can be used over and over.
+                measure(String.format("plant %s seed=%d", profile, seed), i -> {
+                    SyntheticRegion region = regions.get(i % regions.size());
+                    return () -> {
+                        treeProvider.process(region);
+                        sink += region.getRegionFacet(TreeFacet.class).getRelativeEntries().size();
+                        return region.getRegionFacet(LakeFacet.class);
+                    };
+                });
+            }
+        }
+    }
+
+    /**
+     * Runs operations until the warmup time is up, then measures them until the measurement time is up, and logs the
+     * result.
+     *
+     * @param prepare makes the i-th operation ready to run, which isn't counted
+     */
+    private static void measure(String name, IntFunction<Operation> prepare) {
+        run(prepare, WARMUP);
+        long[] totals = run(prepare, MEASUREMENT);
+        long operations = totals[0];
+        logger.info("{}: {} regions/s, {} bytes/region, {} lakes/region", name,
+                String.format("%.1f", operations * (double) TimeUnit.SECONDS.toNanos(1) / totals[1]),
+                totals[2] / operations,
+                String.format("%.2f", totals[3] / (double) operations));
+    }
+
+    /**
+     * @return the operations run, the nanoseconds and bytes they took, and the lakes they saw
+     */
+    private static long[] run(IntFunction<Operation> prepare, long duration) {
+        long[] totals = new long[4];
+        long[] workers = workerThreads();
+        for (int i = 0; totals[1] < duration; i++) {
+            Operation operation = prepare.apply(i);
+            long allocated = allocatedBytes(workers);
+            long started = System.nanoTime();
+            LakeFacet facet = operation.run();
+            totals[1] += System.nanoTime() - started;
+            totals[2] += allocatedBytes(workers) - allocated;
+            int lakes = facet.getLakes().size();
+            totals[3] += lakes;
+            sink += lakes;
+            totals[0]++;
+        }
+        return totals;
+    }
+
+    /**
+     * @return the ids of the threads the benchmarked work runs on: this one, and those of the growth pool, which the
+     * warmup has started
+     */
+    private static long[] workerThreads() {
+        List<Long> ids = new ArrayList<>();
+        ids.add(Thread.currentThread().getId());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(LakeProvider.GROWTH_THREAD_NAME)) {
+                ids.add(thread.getId());
+            }
+        }
+        return ids.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static long allocatedBytes(long[] workers) {
+        long total = 0;
+        for (long id : workers) {
+            // Threads which died meanwhile are reported as -1.
+            total += Math.max(0, threads.getThreadAllocatedBytes(id));
+        }
+        return total;
+    }
+
+    private static List<SyntheticRegion> placeLakes(SyntheticTerrain.Profile profile, long seed) {
+        SyntheticTerrain terrain = new SyntheticTerrain(profile, seed);
+        LakeProvider provider = LakeDigestTest.newProvider(seed, false, true);
+        List<SyntheticRegion> placed = new ArrayList<>();
+        for (BlockRegion bounds : regions()) {
+            SyntheticRegion region = terrain.region(bounds);
+            provider.process(region);
+            placed.add(region);
+        }
+        return placed;
+    }
+
+    /**
+     * @return the chunk-sized regions the benchmarks cycle through, reaching from underground up into the hills
+     */
+    private static List<BlockRegion> regions() {
+        List<BlockRegion> regions = new ArrayList<>();
+        for (int i = 0; i < REGIONS_PER_SIDE; i++) {
+            for (int j = 0; j < REGIONS_PER_SIDE; j++) {
+                regions.add(new BlockRegion(i * 32, -32, j * 32, i * 32 + 31, 31, j * 32 + 31));
+            }
+        }
+        return regions;
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        /**
+         * @return the lakes of the region operated on
+         */
+        LakeFacet run();
+    }
+
+    /**
+     * Stands in for a chunk, only counting the blocks set in it.
+     */
+    private static final class CountingWriter implements LakeRasterizer.BlockWriter {
+        long blocks;
+
+        @Override
+        public void setBlock(int x, int y, int z, Block block) {
+            blocks++;
+            sink += x ^ y ^ z;
+        }
+    }
+}
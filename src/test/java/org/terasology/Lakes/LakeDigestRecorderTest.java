@@ -0,0 +1,40 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.terasology.engine.registry.CoreRegistry;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Records the digests {@link LakeDigestTest} checks lake placement against. They must come from the lakes module as
+ * it began, at commit 1dc3185, so that placement is compared with what existing worlds actually have:
+ * <pre>
+ * git worktree add ../Lakes-baseline 1dc3185
+ * cp src/test/java/org/terasology/Lakes/{SyntheticTerrain,SyntheticRegion,LakeDigests,LakeDigestRecorderTest}.java \
+ *     ../Lakes-baseline/src/test/java/org/terasology/Lakes/
+ * </pre>
+ * then run this test in the baseline module with {@code LAKES_RECORD_DIGESTS} set to the absolute path of
+ * {@code src/test/resources/lake-digests.txt} in this one. These four files use nothing newer than that commit.
+ *
+ * The setting is an environment variable, as Gradle passes those on to the test JVM, but not system properties.
+ */
+@EnabledIfEnvironmentVariable(named = "LAKES_RECORD_DIGESTS", matches = ".+")
+public class LakeDigestRecorderTest {
+
+    @AfterAll
+    public static void unregisterLiquids() {
+        CoreRegistry.setContext(null);
+    }
+
+    @Test
+    public void recordDigests() throws IOException {
+        LakeDigests.registerLiquids();
+        LakeDigests.record(Paths.get(System.getenv("LAKES_RECORD_DIGESTS")));
+    }
+}
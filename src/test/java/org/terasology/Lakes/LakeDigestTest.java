@@ -0,0 +1,119 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.terasology.engine.registry.CoreRegistry;
+import org.terasology.engine.world.block.BlockRegion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that lakes go where they always have. Changes to how lakes are found, grown, cached or stored mustn't move
+ * the lakes of existing worlds, so the lakes placed in made-up terrain, and what was carved for them, are hashed and
+ * compared with digests recorded from the module as it began; see {@link LakeDigestRecorderTest}.
+ *
+ * To check more regions for equivalence of the optimized paths, set the environment variable
+ * {@code LAKES_DIGEST_REGIONS_PER_SIDE}; Gradle passes environment variables on to the test JVM.
+ */
+public class LakeDigestTest {
+    private static final int DEFAULT_REGIONS_PER_SIDE = 2;
+
+    @BeforeAll
+    public static void registerLiquids() {
+        LakeDigests.registerLiquids();
+    }
+
+    @AfterAll
+    public static void unregisterLiquids() {
+        CoreRegistry.setContext(null);
+    }
+
+    /**
+     * Every recorded region must come out the same grown alone by a provider set up as for an existing world, grown
+     * alone one column after another, and grown by one provider which sees the regions in reverse, so it reuses lakes
+     * from other regions.
+     */
+    @Test
+    public void matchesRecordedDigests() throws IOException {
+        Map<String, Long> expected = LakeDigests.read();
+        assertFalse(expected.isEmpty(), "No digests are recorded in " + LakeDigests.DIGESTS + "; see LakeDigestRecorderTest");
+
+        Map<String, LakeProvider> shared = new LinkedHashMap<>();
+        List<String> cases = new ArrayList<>(expected.keySet());
+        for (int i = cases.size() - 1; i >= 0; i--) {
+            String key = cases.get(i);
+            String[] fields = key.split(" ");
+            long seed = Long.parseLong(fields[0]);
+            SyntheticTerrain terrain = new SyntheticTerrain(SyntheticTerrain.Profile.valueOf(fields[1]), seed);
+            int x = Integer.parseInt(fields[2]);
+            int y = Integer.parseInt(fields[3]);
+            int z = Integer.parseInt(fields[4]);
+            BlockRegion region = new BlockRegion(x, y, z, x + LakeDigests.SIZE_X - 1, y + LakeDigests.SIZE_Y - 1, z + LakeDigests.SIZE_Z - 1);
+
+            String digest = Long.toHexString(expected.get(key));
+            assertEquals(digest, Long.toHexString(LakeDigests.generate(LakeDigests.newProvider(seed), terrain, region)), "existing world: " + key);
+            assertEquals(digest, Long.toHexString(LakeDigests.generate(newProvider(seed, true, false), terrain, region)), "in order: " + key);
+            LakeProvider provider = shared.computeIfAbsent(fields[0] + " " + fields[1], name -> LakeDigests.newProvider(seed));
+            assertEquals(digest, Long.toHexString(LakeDigests.generate(provider, terrain, region)), "reused: " + key);
+        }
+    }
+
+    /**
+     * Grows a grid of regions on every core, both with every optimization on and sharing a provider, and with a fresh
+     * provider growing each region in order, for both underground layouts.
+     */
+    @Test
+    public void optimizedGenerationMatchesInOrderGeneration() {
+        String setting = System.getenv("LAKES_DIGEST_REGIONS_PER_SIDE");
+        int side = setting == null ? DEFAULT_REGIONS_PER_SIDE : Integer.parseInt(setting);
+        Queue<String> differences = new ConcurrentLinkedQueue<>();
+        for (boolean legacy : new boolean[]{true, false}) {
+            for (long seed : LakeDigests.SEEDS) {
+                for (SyntheticTerrain.Profile profile : SyntheticTerrain.Profile.values()) {
+                    SyntheticTerrain terrain = new SyntheticTerrain(profile, seed);
+                    LakeProvider optimized = newProvider(seed, legacy, true);
+                    ((LakeProvider.Configuration) optimized.getConfiguration()).backgroundPlanning = true;
+                    IntStream.range(0, side * side).parallel().forEach(i -> {
+                        BlockRegion region = LakeDigests.region(i / side - side / 2, i % 2 - 1, i % side - side / 2);
+                        long expected = LakeDigests.generate(newProvider(seed, legacy, false), terrain, region);
+                        if (LakeDigests.generate(optimized, terrain, region) != expected) {
+                            differences.add((legacy ? "legacy " : "") + seed + " " + profile + " " + region);
+                        }
+                    });
+                }
+            }
+        }
+        assertTrue(differences.isEmpty(), () -> "Optimized generation differs in " + differences);
+    }
+
+    /**
+     * @return a provider with the given configuration, which keeps its lakes to itself
+     */
+    static LakeProvider newProvider(long seed, boolean legacyUndergroundSampling, boolean parallelGrowth) {
+        LakeProvider provider = new LakeProvider();
+        provider.isolated = true;
+        LakeProvider.Configuration configuration = new LakeProvider.Configuration();
+        configuration.legacyUndergroundSampling = legacyUndergroundSampling;
+        configuration.parallelGrowth = parallelGrowth;
+        provider.setConfiguration(configuration);
+        provider.setSeed(seed);
+        provider.water = LakeDigests.WATER;
+        provider.lava = LakeDigests.LAVA;
+        return provider;
+    }
+}
@@ -0,0 +1,174 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.joml.Vector3i;
+import org.mockito.Mockito;
+import org.terasology.engine.context.Context;
+import org.terasology.engine.context.internal.ContextImpl;
+import org.terasology.engine.registry.CoreRegistry;
+import org.terasology.engine.world.block.Block;
+import org.terasology.engine.world.block.BlockManager;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
+import org.terasology.engine.world.generation.Region;
+import org.terasology.engine.world.generation.facets.DensityFacet;
+import org.terasology.engine.world.generation.facets.SurfacesFacet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashes the blocks lakes leave in a region of made-up terrain: the lakes' blocks, and the density and surfaces as
+ * the lakes carved them. Only what ends up within the region itself is hashed, as that's all a world keeps of it.
+ *
+ * This uses nothing the lakes module has added since it began (commit 1dc3185), so that the digests in
+ * {@value #DIGESTS} can be recorded on that commit. {@link LakeDigestRecorderTest} explains how.
+ */
+final class LakeDigests {
+    static final String DIGESTS = "/lake-digests.txt";
+    static final long[] SEEDS = {1, 42, 20160613};
+    /** Chunk-sized regions, in units of regions, reaching from underground up into the hills. */
+    static final int[][] REGIONS = {{0, -1, 0}, {0, 0, 0}, {-40, 0, 27}, {3, -2, 3}};
+    static final int SIZE_X = 32;
+    static final int SIZE_Y = 64;
+    static final int SIZE_Z = 32;
+
+    static final Block WATER = new Block();
+    static final Block LAVA = new Block();
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private LakeDigests() {
+    }
+
+    /**
+     * Gives lake providers their liquids the way a game does, through a block manager in the registry.
+     */
+    static void registerLiquids() {
+        BlockManager blockManager = Mockito.mock(BlockManager.class);
+        Mockito.when(blockManager.getBlock("CoreAssets:Water")).thenReturn(WATER);
+        Mockito.when(blockManager.getBlock("CoreAssets:Lava")).thenReturn(LAVA);
+        Context context = new ContextImpl();
+        context.put(BlockManager.class, blockManager);
+        CoreRegistry.setContext(context);
+    }
+
+    /**
+     * @return a provider set up as for a world created before lakes had a configuration; the liquids must have been
+     * registered
+     */
+    static LakeProvider newProvider(long seed) {
+        LakeProvider provider = new LakeProvider();
+        provider.setSeed(seed);
+        return provider;
+    }
+
+    /**
+     * Places the lakes of one region and hashes the outcome.
+     */
+    static long generate(LakeProvider provider, SyntheticTerrain terrain, BlockRegionc region) {
+        SyntheticRegion generating = terrain.region(region);
+        provider.process(generating);
+        return digest(generating, region);
+    }
+
+    /**
+     * Hashes the lake blocks within the region, and the density and surfaces facets there as the lakes left them.
+     * Since the terrain going in is always the same, the facets cover every change carving made. Lake blocks are
+     * hashed one by one and combined in a fixed order, as neither the facet nor the lakes keep them in one.
+     */
+    static long digest(Region generated, BlockRegionc region) {
+        List<Long> blocks = new ArrayList<>();
+        for (Lake lake : generated.getFacet(LakeFacet.class).getLakes()) {
+            for (Vector3i pos : lake) {
+                if (region.contains(pos)) {
+                    long kind = pos.y <= lake.surfaceHeight ? (lake.liquid == LAVA ? 2 : 1) : 0;
+                    blocks.add(mix(mix(mix(mix(FNV_OFFSET, pos.x), pos.y), pos.z), kind));
+                }
+            }
+        }
+        long[] sorted = blocks.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+
+        long hash = mix(FNV_OFFSET, sorted.length);
+        for (long block : sorted) {
+            hash = mix(hash, block);
+        }
+        DensityFacet density = generated.getFacet(DensityFacet.class);
+        SurfacesFacet surfaces = generated.getFacet(SurfacesFacet.class);
+        for (int x = region.minX(); x <= region.maxX(); x++) {
+            for (int z = region.minZ(); z <= region.maxZ(); z++) {
+                for (int y = region.minY(); y <= region.maxY(); y++) {
+                    hash = mix(hash, Float.floatToIntBits(density.getWorld(x, y, z)));
+                    hash = mix(hash, surfaces.getWorld(x, y, z) ? 1 : 0);
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Records the digest of every region for every seed and terrain profile, grown in order by a fresh provider.
+     */
+    static void record(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# seed profile minX minY minZ digest, for " + SIZE_X + "x" + SIZE_Y + "x" + SIZE_Z + " regions");
+        for (long seed : SEEDS) {
+            for (SyntheticTerrain.Profile profile : SyntheticTerrain.Profile.values()) {
+                SyntheticTerrain terrain = new SyntheticTerrain(profile, seed);
+                for (int[] position : REGIONS) {
+                    BlockRegion region = region(position[0], position[1], position[2]);
+                    long digest = generate(newProvider(seed), terrain, region);
+                    lines.add(seed + " " + profile + " " + region.minX() + " " + region.minY() + " " + region.minZ() + " " + Long.toHexString(digest));
+                }
+            }
+        }
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the recorded digests, keyed by seed, profile and the region's minimum corner
+     */
+    static Map<String, Long> read() throws IOException {
+        Map<String, Long> digests = new LinkedHashMap<>();
+        try (InputStream in = LakeDigests.class.getResourceAsStream(DIGESTS)) {
+            if (in == null) {
+                return digests;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int split = line.lastIndexOf(' ');
+                digests.put(line.substring(0, split), Long.parseUnsignedLong(line.substring(split + 1), 16));
+            }
+        }
+        return digests;
+    }
+
+    static BlockRegion region(int x, int y, int z) {
+        return new BlockRegion(x * SIZE_X, y * SIZE_Y, z * SIZE_Z, x * SIZE_X + SIZE_X - 1, y * SIZE_Y + SIZE_Y - 1, z * SIZE_Z + SIZE_Z - 1);
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xFF)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+}
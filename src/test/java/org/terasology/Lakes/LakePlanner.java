@@ -0,0 +1,172 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.terasology.engine.world.block.Block;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
+import org.terasology.engine.world.generation.Border3D;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Places the lakes of made-up terrain over a large area without generating any chunks, to draw overview maps of how
+ * lakes are spread and to measure how quickly they're placed. The area is split into tiles which are processed on a
+ * work-stealing pool, each as if it were a region of its own.
+ *
+ * This is a development tool, not a way to pre-generate a world: the lakes only fit the made-up terrain, not the terrain
+ * of any real world, so the planner has a provider of its own, which shares no cache, catalog or index with a game's,
+ * and its output can't be used to warm them. It lives with the tests for that reason. Planning a real world would need
+ * that world's own facet providers to run over the area, which is the engine's generation itself.
+ *
+ * Tiles have no lake border and start on cell boundaries, so each cell is searched by exactly one tile and each lake
+ * is reported once.
+ */
+public final class LakePlanner {
+    /** The width of a tile, a whole number of cells. */
+    public static final int TILE_SIZE = 32 * LakeProvider.SKIP_BLOCKS;
+
+    private final LakeProvider provider;
+    private final SyntheticTerrain terrain;
+    private final int minY;
+    private final int maxY;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param configuration how to place the lakes; the catalog is never used
+     * @param minY the bottom of the area searched for lakes
+     * @param maxY the top of the area searched for lakes
+     */
+    public LakePlanner(long seed, LakeProvider.Configuration configuration, SyntheticTerrain terrain, int minY, int maxY, ForkJoinPool pool) {
+        LakeProvider.Configuration copy = new LakeProvider.Configuration();
+        copy.copyFrom(configuration);
+        copy.persistentCatalog = false;
+        this.provider = new LakeProvider();
+        provider.isolated = true;
+        provider.setConfiguration(copy);
+        provider.setSeed(seed);
+        provider.water = new Block();
+        provider.lava = new Block();
+        this.terrain = terrain;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.pool = pool;
+    }
+
+    /**
+     * Places the lakes in the tiles covering the given rectangle.
+     *
+     * @param lakes receives each lake as soon as its tile is done; it's called from several threads at once
+     */
+    public Report plan(int minX, int minZ, int maxX, int maxZ, Consumer<Lake> lakes) throws InterruptedException {
+        int minTileX = Math.floorDiv(minX, TILE_SIZE);
+        int minTileZ = Math.floorDiv(minZ, TILE_SIZE);
+        int tilesX = Math.floorDiv(maxX, TILE_SIZE) - minTileX + 1;
+        int tilesZ = Math.floorDiv(maxZ, TILE_SIZE) - minTileZ + 1;
+        LongAdder found = new LongAdder();
+        LongAdder blocks = new LongAdder();
+        Border3D noBorder = new Border3D(0, 0, 0);
+
+        long started = System.nanoTime();
+        try {
+            pool.submit(() -> IntStream.range(0, tilesX * tilesZ).parallel().forEach(i -> {
+                int x = (minTileX + i / tilesZ) * TILE_SIZE;
+                int z = (minTileZ + i % tilesZ) * TILE_SIZE;
+                BlockRegionc tile = new BlockRegion(x, minY, z, x + TILE_SIZE - 1, maxY, z + TILE_SIZE - 1);
+                SyntheticRegion region = terrain.region(tile, noBorder);
+                provider.process(region);
+                for (Lake lake : region.getRegionFacet(LakeFacet.class).getLakes()) {
+                    found.increment();
+                    blocks.add(lake.size());
+                    lakes.accept(lake);
+                }
+            })).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Planning lakes failed", e.getCause());
+        }
+        return new Report(tilesX * tilesZ, found.sum(), blocks.sum(), System.nanoTime() - started, pool.getParallelism());
+    }
+
+    /**
+     * Plans the lakes of a synthetic world and prints them as comma-separated values.
+     * Arguments: seed, terrain profile, minX, minZ, maxX, maxZ, and optionally the number of threads.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 6) {
+            System.err.println("Usage: LakePlanner <seed> <FLAT|HILLY|CAVES> <minX> <minZ> <maxX> <maxZ> [threads]");
+            System.exit(1);
+        }
+        long seed = Long.parseLong(args[0]);
+        SyntheticTerrain terrain = new SyntheticTerrain(SyntheticTerrain.Profile.valueOf(args[1]), seed);
+        int threads = args.length > 6 ? Integer.parseInt(args[6]) : Runtime.getRuntime().availableProcessors();
+
+        LakePlanner planner = new LakePlanner(seed, LakeProvider.Configuration.forNewWorld(), terrain, -64, 127, new ForkJoinPool(threads));
+        Block lava = planner.provider.lava;
+        System.out.println("minX,minY,minZ,maxX,maxY,maxZ,surfaceHeight,blocks,liquid");
+        Report report = planner.plan(Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]),
+            lake -> {
+                BlockRegionc bounds = lake.getBounds();
+                String line = bounds.minX() + "," + bounds.minY() + "," + bounds.minZ() + ","
+                    + bounds.maxX() + "," + bounds.maxY() + "," + bounds.maxZ() + ","
+                    + lake.surfaceHeight + "," + lake.size() + "," + (lake.liquid == lava ? "lava" : "water");
+                synchronized (System.out) {
+                    System.out.println(line);
+                }
+            });
+        System.err.println(report);
+    }
+
+    /**
+     * What a run of the planner did, and how quickly.
+     */
+    public static final class Report {
+        private final int tiles;
+        private final long lakes;
+        private final long blocks;
+        private final long nanos;
+        private final int threads;
+
+        Report(int tiles, long lakes, long blocks, long nanos, int threads) {
+            this.tiles = tiles;
+            this.lakes = lakes;
+            this.blocks = blocks;
+            this.nanos = nanos;
+            this.threads = threads;
+        }
+
+        public int getTiles() {
+            return tiles;
+        }
+
+        public long getLakes() {
+            return lakes;
+        }
+
+        public long getBlocks() {
+            return blocks;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public double getLakesPerSecondPerCore() {
+            return lakes / (nanos / 1e9) / threads;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d lakes (%d blocks) in %d tiles in %.1fs on %d threads: %.1f lakes per second per core",
+                lakes, blocks, tiles, nanos / 1e9, threads, getLakesPerSecondPerCore());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.Border3D;
+import org.terasology.engine.world.generation.GeneratingRegion;
+import org.terasology.engine.world.generation.Region;
+import org.terasology.engine.world.generation.WorldFacet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A region being generated outside the engine's world generator, holding whatever facets it's given.
+ * It serves both as the region facet providers fill in and as the region rasterizers read.
+ *
+ * @see SyntheticTerrain#region
+ */
+public final class SyntheticRegion implements GeneratingRegion, Region {
+    private final BlockRegion region;
+    private final Map<Class<? extends WorldFacet>, WorldFacet> facets = new HashMap<>();
+    private final Map<Class<? extends WorldFacet>, Border3D> borders = new HashMap<>();
+
+    public SyntheticRegion(BlockRegion region) {
+        this.region = region;
+    }
+
+    @Override
+    public BlockRegion getRegion() {
+        return region;
+    }
+
+    @Override
+    public <T extends WorldFacet> T getRegionFacet(Class<T> type) {
+        return type.cast(facets.get(type));
+    }
+
+    @Override
+    public <T extends WorldFacet> void setRegionFacet(Class<T> type, T facet) {
+        facets.put(type, facet);
+    }
+
+    @Override
+    public <T extends WorldFacet> T getFacet(Class<T> type) {
+        return getRegionFacet(type);
+    }
+
+    @Override
+    public Border3D getBorderForFacet(Class<? extends WorldFacet> type) {
+        return borders.getOrDefault(type, new Border3D(0, 0, 0));
+    }
+
+    public void setBorder(Class<? extends WorldFacet> type, Border3D border) {
+        borders.put(type, border);
+    }
+}
@@ -0,0 +1,183 @@
+// Copyright 2020 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.Lakes;
+
+import org.terasology.biomesAPI.Biome;
+import org.terasology.core.world.CoreBiome;
+import org.terasology.core.world.generator.facets.BiomeFacet;
+import org.terasology.core.world.generator.facets.TreeFacet;
+import org.terasology.engine.utilities.procedural.BrownianNoise;
+import org.terasology.engine.utilities.procedural.Noise;
+import org.terasology.engine.utilities.procedural.SimplexNoise;
+import org.terasology.engine.world.block.BlockAreac;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.BlockRegionc;
+import org.terasology.engine.world.generation.Border3D;
+import org.terasology.engine.world.generation.Facet;
+import org.terasology.engine.world.generation.FacetBorder;
+import org.terasology.engine.world.generation.Requires;
+import org.terasology.engine.world.generation.Updates;
+import org.terasology.engine.world.generation.WorldFacet;
+import org.terasology.engine.world.generation.facets.DensityFacet;
+import org.terasology.engine.world.generation.facets.ElevationFacet;
+import org.terasology.engine.world.generation.facets.SeaLevelFacet;
+import org.terasology.engine.world.generation.facets.SurfacesFacet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Made-up terrain for running the lake providers without a world generator, in tests and benchmarks.
+ * The facets are the engine's own, filled in from a few noise functions, and are the same for the same seed.
+ */
+public final class SyntheticTerrain {
+    public enum Profile {
+        /** Low, gently rolling ground, where most surface candidates turn into lakes. */
+        FLAT,
+        /** Hills and valleys, where many candidates are too sloped. */
+        HILLY,
+        /** Hilly ground riddled with caves, giving extra surfaces underground and breaching underground lakes. */
+        CAVES
+    }
+
+    public static final int SEA_LEVEL = 10;
+
+    private final Profile profile;
+    private final Noise heightNoise;
+    private final Noise caveNoise;
+    private final Noise biomeNoise;
+
+    public SyntheticTerrain(Profile profile, long seed) {
+        this.profile = profile;
+        this.heightNoise = new BrownianNoise(new SimplexNoise(seed), 4);
+        this.caveNoise = new BrownianNoise(new SimplexNoise(seed + 1), 2);
+        this.biomeNoise = new SimplexNoise(seed + 2);
+    }
+
+    public int height(int x, int z) {
+        if (profile == Profile.FLAT) {
+            return SEA_LEVEL + 6 + Math.round(1.5f * heightNoise.noise(x * 0.02f, z * 0.02f));
+        }
+        return SEA_LEVEL + 8 + Math.round(14 * heightNoise.noise(x * 0.01f, z * 0.01f));
+    }
+
+    public float density(int x, int y, int z) {
+        int height = height(x, z);
+        if (profile == Profile.CAVES && y < height - 3 && Math.abs(caveNoise.noise(x * 0.04f, y * 0.06f, z * 0.04f)) < 0.12f) {
+            return -1;
+        }
+        return height - y;
+    }
+
+    public Biome biome(int x, int z) {
+        return biomeNoise.noise(x * 0.005f, z * 0.005f) > 0 ? CoreBiome.DESERT : CoreBiome.PLAINS;
+    }
+
+    /**
+     * @return the given region of this terrain, with every facet the lake providers use, over the borders they ask for
+     */
+    public SyntheticRegion region(BlockRegionc region) {
+        return region(region, declaredBorder(LakeFacet.class, null));
+    }
+
+    /**
+     * @param lakeBorder the border to give the lake facet, in place of the one the tree provider asks for
+     * @return the given region of this terrain, with every facet the lake providers use
+     */
+    public SyntheticRegion region(BlockRegionc region, Border3D lakeBorder) {
+        BlockRegion target = new BlockRegion(region);
+        SyntheticRegion result = new SyntheticRegion(target);
+        result.setBorder(LakeFacet.class, lakeBorder);
+
+        SurfacesFacet surfaces = new SurfacesFacet(target, declaredBorder(SurfacesFacet.class, lakeBorder));
+        DensityFacet density = new DensityFacet(target, declaredBorder(DensityFacet.class, lakeBorder));
+        BlockRegionc densityRegion = density.getWorldRegion();
+        for (int x = densityRegion.minX(); x <= densityRegion.maxX(); x++) {
+            for (int z = densityRegion.minZ(); z <= densityRegion.maxZ(); z++) {
+                for (int y = densityRegion.minY(); y <= densityRegion.maxY(); y++) {
+                    density.setWorld(x, y, z, density(x, y, z));
+                }
+            }
+        }
+        BlockRegionc surfacesRegion = surfaces.getWorldRegion();
+        for (int x = surfacesRegion.minX(); x <= surfacesRegion.maxX(); x++) {
+            for (int z = surfacesRegion.minZ(); z <= surfacesRegion.maxZ(); z++) {
+                for (int y = surfacesRegion.minY(); y <= surfacesRegion.maxY(); y++) {
+                    surfaces.setWorld(x, y, z, density(x, y, z) > 0 && density(x, y + 1, z) <= 0);
+                }
+            }
+        }
+        result.setRegionFacet(SurfacesFacet.class, surfaces);
+        result.setRegionFacet(DensityFacet.class, density);
+
+        ElevationFacet elevation = new ElevationFacet(target, declaredBorder(ElevationFacet.class, lakeBorder));
+        BlockAreac elevationArea = elevation.getWorldArea();
+        for (int x = elevationArea.minX(); x <= elevationArea.maxX(); x++) {
+            for (int z = elevationArea.minY(); z <= elevationArea.maxY(); z++) {
+                elevation.setWorld(x, z, height(x, z));
+            }
+        }
+        result.setRegionFacet(ElevationFacet.class, elevation);
+
+        SeaLevelFacet seaLevel = new SeaLevelFacet(target, declaredBorder(SeaLevelFacet.class, lakeBorder));
+        seaLevel.setSeaLevel(SEA_LEVEL);
+        result.setRegionFacet(SeaLevelFacet.class, seaLevel);
+
+        BiomeFacet biomes = new BiomeFacet(target, declaredBorder(BiomeFacet.class, lakeBorder));
+        BlockAreac biomeArea = biomes.getWorldArea();
+        for (int x = biomeArea.minX(); x <= biomeArea.maxX(); x++) {
+            for (int z = biomeArea.minY(); z <= biomeArea.maxY(); z++) {
+                biomes.setWorld(x, z, biome(x, z));
+            }
+        }
+        result.setRegionFacet(BiomeFacet.class, biomes);
+
+        result.setRegionFacet(TreeFacet.class, new TreeFacet(target, declaredBorder(TreeFacet.class, lakeBorder)));
+        return result;
+    }
+
+    /**
+     * Works out the border the engine would give a facet, from what the lake providers declare they need.
+     * Facets {@link LakeProvider} reads are needed around the whole of the lake facet, including its own border.
+     *
+     * @param lakeBorder the lake facet's border, or null when working out the lake facet's own border
+     */
+    private static Border3D declaredBorder(Class<? extends WorldFacet> type, Border3D lakeBorder) {
+        int[] border = new int[3];
+        FacetBorder tree = find(LakeTreeProvider.class, type);
+        if (tree != null) {
+            include(border, tree.top(), tree.bottom(), tree.sides());
+        }
+        FacetBorder lake = lakeBorder == null ? null : find(LakeProvider.class, type);
+        if (lake != null) {
+            include(border, lakeBorder.getTop() + lake.top(), lakeBorder.getBottom() + lake.bottom(), lakeBorder.getSides() + lake.sides());
+        }
+        return new Border3D(border[0], border[1], border[2]);
+    }
+
+    private static FacetBorder find(Class<?> provider, Class<? extends WorldFacet> type) {
+        List<Facet> facets = new ArrayList<>();
+        Requires requires = provider.getAnnotation(Requires.class);
+        if (requires != null) {
+            facets.addAll(Arrays.asList(requires.value()));
+        }
+        Updates updates = provider.getAnnotation(Updates.class);
+        if (updates != null) {
+            facets.addAll(Arrays.asList(updates.value()));
+        }
+        for (Facet facet : facets) {
+            if (facet.value() == type) {
+                return facet.border();
+            }
+        }
+        return null;
+    }
+
+    private static void include(int[] border, int top, int bottom, int sides) {
+        border[0] = Math.max(border[0], top);
+        border[1] = Math.max(border[1], bottom);
+        border[2] = Math.max(border[2], sides);
+    }
+}